@@ -0,0 +1,255 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+/**
+ * Keeps the recent failed logins of each user in memory, so that
+ * {@link org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy}
+ * can check them without a database query.
+ * <p>
+ * Like {@link JdbcFailedLoginCountingAuditService} it only remembers
+ * authentication failures, and forgets them when the user logs in or changes
+ * the password. For each user only the most recent
+ * {@link #setMaxFailuresPerUser(int) maxFailuresPerUser} failures are kept,
+ * which gives the same lockout decisions as long as it is at least the
+ * policy's <code>lockoutAfterFailures</code>. Failures older than
+ * {@link #setMaxAgeSeconds(int) maxAgeSeconds} are purged periodically.
+ * <p>
+ * If a persistent audit service is provided, all events are also passed on
+ * to it and it remains the source of truth: by default the failures of a
+ * user are loaded from it on every check, so that failed and successful
+ * logins on other servers count exactly as they would without this service.
+ * A positive {@link #setReloadIntervalSeconds(int) reloadIntervalSeconds}
+ * saves those queries, but counts are then only exact on a single server, as
+ * they are without a persistent service.
+ */
+@ManagedResource
+public class InMemoryFailedLoginCountingAuditService implements UaaAuditService {
+
+    private final UaaAuditService persistentAuditService;
+
+    private final ConcurrentMap<String, Failures> failures = new ConcurrentHashMap<String, Failures>();
+
+    private int maxFailuresPerUser = 10;
+
+    private long maxAgeMillis = 3600 * 1000; // 1hr
+
+    private long purgeIntervalMillis = 60 * 1000;
+
+    private long reloadIntervalMillis = 0;
+
+    private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    public InMemoryFailedLoginCountingAuditService() {
+        this(null);
+    }
+
+    /**
+     * @param persistentAuditService the service to store events in and to
+     *            load unknown users from (may be null)
+     */
+    public InMemoryFailedLoginCountingAuditService(UaaAuditService persistentAuditService) {
+        this.persistentAuditService = persistentAuditService;
+    }
+
+    /**
+     * @param maxFailuresPerUser the number of recent failures to remember for
+     *            each user (default 10)
+     */
+    public void setMaxFailuresPerUser(int maxFailuresPerUser) {
+        this.maxFailuresPerUser = maxFailuresPerUser;
+    }
+
+    /**
+     * @param maxAgeSeconds the time failures are remembered for (default
+     *            3600)
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeMillis = maxAgeSeconds * 1000l;
+    }
+
+    /**
+     * @param purgeIntervalSeconds the minimum time between purges of old
+     *            failures (default 60)
+     */
+    public void setPurgeIntervalSeconds(int purgeIntervalSeconds) {
+        this.purgeIntervalMillis = purgeIntervalSeconds * 1000l;
+    }
+
+    /**
+     * @param reloadIntervalSeconds the time after which the failures of a
+     *            user are loaded again from the persistent audit service, to
+     *            pick up logins on other servers (default 0, which loads
+     *            them on every check)
+     */
+    public void setReloadIntervalSeconds(int reloadIntervalSeconds) {
+        this.reloadIntervalMillis = reloadIntervalSeconds * 1000l;
+    }
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        purgeIfDue();
+        Failures userFailures = failures.get(principal);
+        if (userFailures == null && persistentAuditService == null) {
+            return Collections.emptyList();
+        }
+        if (userFailures == null || userFailures.loadedAfter > after || isStale(userFailures)) {
+            userFailures = load(principal, after);
+        }
+        return userFailures.since(principal, after);
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        switch (auditEvent.getType()) {
+            case UserAuthenticationSuccess:
+            case PasswordChangeSuccess:
+                failures.put(auditEvent.getPrincipalId(), new Failures(maxFailuresPerUser, Long.MIN_VALUE));
+                break;
+            case UserAuthenticationFailure:
+                Failures userFailures = failures.get(auditEvent.getPrincipalId());
+                if (userFailures == null || isStale(userFailures)) {
+                    userFailures = load(auditEvent.getPrincipalId(), System.currentTimeMillis() - maxAgeMillis);
+                }
+                userFailures.add(auditEvent.getTime(), auditEvent.getIdentityZoneId());
+                purgeIfDue();
+                break;
+            default:
+                break;
+        }
+        if (persistentAuditService != null) {
+            persistentAuditService.log(auditEvent);
+        }
+    }
+
+    private Failures load(String principal, long after) {
+        Failures loaded = new Failures(maxFailuresPerUser, persistentAuditService == null ? Long.MIN_VALUE : after);
+        if (persistentAuditService != null) {
+            loadCount.incrementAndGet();
+            List<AuditEvent> events = persistentAuditService.find(principal, after);
+            for (int i = events.size() - 1; i >= 0; i--) {
+                AuditEvent event = events.get(i);
+                if (event.getType() == AuditEventType.UserAuthenticationFailure) {
+                    loaded.add(event.getTime(), event.getIdentityZoneId());
+                }
+            }
+        }
+        Failures existing = failures.putIfAbsent(principal, loaded);
+        if (existing == null) {
+            return loaded;
+        }
+        if (existing.loadedAfter <= after && !isStale(existing)) {
+            // another thread got there first
+            return existing;
+        }
+        failures.put(principal, loaded);
+        return loaded;
+    }
+
+    private boolean isStale(Failures userFailures) {
+        return persistentAuditService != null
+                        && System.currentTimeMillis() - userFailures.loadedAt >= reloadIntervalMillis;
+    }
+
+    private void purgeIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastPurge.get();
+        if (now - last < purgeIntervalMillis || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+        long oldest = now - maxAgeMillis;
+        for (Iterator<Failures> iterator = failures.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().latest() <= oldest) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Users With Recent Failed Logins")
+    public int getUserCount() {
+        return failures.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Failed Login History Load Count")
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Ring buffer of the most recent failure times of one user.
+     */
+    private static final class Failures {
+
+        private final long[] times;
+
+        private final String[] zones;
+
+        private final long loadedAfter;
+
+        private final long loadedAt = System.currentTimeMillis();
+
+        private int next = 0;
+
+        private int count = 0;
+
+        private Failures(int capacity, long loadedAfter) {
+            this.times = new long[Math.max(capacity, 1)];
+            this.zones = new String[times.length];
+            this.loadedAfter = loadedAfter;
+        }
+
+        private synchronized void add(long time, String zoneId) {
+            times[next] = time;
+            zones[next] = zoneId;
+            next = (next + 1) % times.length;
+            count = Math.min(count + 1, times.length);
+        }
+
+        private synchronized long latest() {
+            return count == 0 ? Long.MIN_VALUE : times[(next - 1 + times.length) % times.length];
+        }
+
+        /**
+         * @return the failures after the given time, most recent first (the
+         *         order of {@link JdbcAuditService#find(String, long)})
+         */
+        private synchronized List<AuditEvent> since(String principal, long after) {
+            if (count == 0) {
+                return Collections.emptyList();
+            }
+            List<AuditEvent> result = new ArrayList<AuditEvent>(count);
+            for (int i = 1; i <= count; i++) {
+                int index = (next - i + times.length) % times.length;
+                if (times[index] > after) {
+                    result.add(new AuditEvent(AuditEventType.UserAuthenticationFailure, principal, null, null,
+                                    times[index], zones[index]));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -15,21 +15,112 @@ package org.cloudfoundry.identity.uaa.audit;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 
 /**
- * 
- * @author Luke Taylor
+ * Audit service that stores events in the <code>sec_audit</code> table.
+ * <p>
+ * By default every event is inserted on the calling thread. If
+ * {@link #setAsync(boolean) async} is set, events are put on a bounded queue
+ * instead, and a background thread inserts them in batches of up to
+ * {@link #setFlushSize(int) flushSize}, at least every
+ * {@link #setFlushIntervalMillis(long) flushIntervalMillis}. A batch that
+ * cannot be written is retried up to {@link #setMaxRetries(int) maxRetries}
+ * times before it is dropped. {@link #find(String, long)} adds the events of
+ * the principal that are still waiting to be written to the rows it reads, so
+ * readers never miss an event that has already been logged, and the queue is
+ * written when the service is destroyed.
  */
-public class JdbcAuditService implements UaaAuditService {
+@ManagedResource
+public class JdbcAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for the background thread to make room. */
+        BLOCK,
+        /** Discard the event. */
+        DROP,
+        /** Discard the event, but write it to the log. */
+        LOG
+    }
+
+    private static final String INSERT_SQL = "insert into sec_audit (principal_id, event_type, origin, event_data, created, identity_zone_id) values (?,?,?,?,?,?)";
+
+    private final Log logger = LogFactory.getLog(getClass());
 
     private final JdbcTemplate template;
 
+    private boolean async = false;
+
+    private int queueCapacity = 10000;
+
+    private int flushSize = 100;
+
+    private long flushIntervalMillis = 1000;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private int maxRetries = 3;
+
+    private BlockingQueue<AuditEvent> queue;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    // held for reading while an event is queued, and for writing when the
+    // writer is stopped, so that no event is queued after the last flush
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+    // held while events are taken off the queue and written, so that they
+    // reach the database in the order they were logged
+    private final Object writeLock = new Object();
+
+    // the batch being written, which stays visible to find() until it is in
+    // the database or dropped
+    private volatile List<AuditEvent> inFlight = Collections.emptyList();
+
+    private volatile int failedAttempts = 0;
+
+    // incremented before and after each batch is written
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong flushMillis = new AtomicLong();
+
+    private volatile long maxFlushMillis = 0;
+
     public JdbcAuditService(DataSource dataSource) {
         this.template = new JdbcTemplate(dataSource);
     }
@@ -38,24 +129,357 @@ public class JdbcAuditService implements UaaAuditService {
         return template;
     }
 
+    /**
+     * @param async true to write events on a background thread (default
+     *            false)
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of events waiting to be written
+     *            (default 10000)
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param flushSize the number of queued events that triggers a write, and
+     *            the maximum number of rows in one batch (default 100)
+     */
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * @param flushIntervalMillis the maximum time an event waits on the queue
+     *            (default 1000)
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * @param overflowPolicy what to do when the queue is full (default BLOCK)
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param maxRetries the number of times a batch that could not be written
+     *            is tried again before it is dropped (default 3)
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!async) {
+            return;
+        }
+        queue = new LinkedBlockingQueue<AuditEvent>(queueCapacity);
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    if (queue.size() < flushSize || failedAttempts > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+                    }
+                    try {
+                        flush();
+                    } catch (Throwable e) {
+                        logger.error("Unexpected error in audit writer", e);
+                    }
+                }
+            }
+        }, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (writer == null) {
+            return;
+        }
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+        LockSupport.unpark(writer);
+        writer.join(flushIntervalMillis + 5000);
+        writer = null;
+        for (int i = 0; i <= maxRetries && !(inFlight.isEmpty() && queue.isEmpty()); i++) {
+            flush();
+        }
+    }
+
     @Override
     public List<AuditEvent> find(String principal, long after) {
+        if (queue == null) {
+            return select(principal, after);
+        }
+        for (int attempt = 1;; attempt++) {
+            long writes = writeCount.get();
+            List<AuditEvent> pending = getPending(principal, after);
+            List<AuditEvent> events = select(principal, after);
+            if (pending.isEmpty()) {
+                return events;
+            }
+            // if no batch was being written in the meantime, none of the
+            // pending events can be in the rows just read
+            boolean unchanged = writes % 2 == 0 && writes == writeCount.get();
+            if (unchanged || attempt >= 3) {
+                return merge(pending, events, !unchanged);
+            }
+        }
+    }
+
+    private List<AuditEvent> select(String principal, long after) {
         return template.query("select event_type, principal_id, origin, event_data, created, identity_zone_id from sec_audit where " +
                         "principal_id=? and created > ? order by created desc", new AuditEventRowMapper(), principal,
                         new Timestamp(after));
     }
 
+    /**
+     * @return the events of the principal that are queued or being written,
+     *         most recent first
+     */
+    private List<AuditEvent> getPending(String principal, long after) {
+        // the queue is read first: an event that moves to the batch in flight
+        // in between is then seen twice rather than not at all
+        List<AuditEvent> queued = new ArrayList<AuditEvent>(queue);
+        List<AuditEvent> all = new ArrayList<AuditEvent>(inFlight);
+        all.addAll(queued);
+        Set<AuditEvent> seen = Collections.newSetFromMap(new IdentityHashMap<AuditEvent, Boolean>());
+        List<AuditEvent> pending = new ArrayList<AuditEvent>();
+        for (AuditEvent event : all) {
+            if (principal.equals(event.getPrincipalId()) && event.getTime() > after && seen.add(event)) {
+                pending.add(event);
+            }
+        }
+        Collections.reverse(pending);
+        return pending;
+    }
+
+    /**
+     * Add the pending events to the rows that were read. If a batch was
+     * written while they were read, a pending event may be among the rows,
+     * so each row is allowed to stand for one pending event of the same type
+     * logged within a second of it (the precision of some databases).
+     */
+    private List<AuditEvent> merge(List<AuditEvent> pending, List<AuditEvent> events, boolean mayOverlap) {
+        List<AuditEvent> unmatched = new ArrayList<AuditEvent>(events);
+        List<AuditEvent> result = new ArrayList<AuditEvent>();
+        for (AuditEvent event : pending) {
+            if (!mayOverlap || !removeMatch(unmatched, event)) {
+                result.add(event);
+            }
+        }
+        result.addAll(events);
+        Collections.sort(result, new Comparator<AuditEvent>() {
+            @Override
+            public int compare(AuditEvent o1, AuditEvent o2) {
+                return o1.getTime() > o2.getTime() ? -1 : o1.getTime() < o2.getTime() ? 1 : 0;
+            }
+        });
+        return result;
+    }
+
+    private static boolean removeMatch(List<AuditEvent> rows, AuditEvent event) {
+        for (Iterator<AuditEvent> iterator = rows.iterator(); iterator.hasNext();) {
+            AuditEvent row = iterator.next();
+            if (row.getType() == event.getType() && Math.abs(row.getTime() - event.getTime()) < 1000) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void log(AuditEvent auditEvent) {
-        String origin = auditEvent.getOrigin();
-        String data = auditEvent.getData();
-        origin = origin == null ? "" : origin;
-        origin = origin.length() > 255 ? origin.substring(0, 255) : origin;
-        data = data == null ? "" : data;
-        data = data.length() > 255 ? data.substring(0, 255) : data;
-        template.update("insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id) values (?,?,?,?,?)",
-                        auditEvent.getPrincipalId(), auditEvent.getType().getCode(), auditEvent.getOrigin(),
-                        auditEvent.getData(), auditEvent.getIdentityZoneId());
+        runningLock.readLock().lock();
+        try {
+            if (running) {
+                enqueue(auditEvent);
+                return;
+            }
+        } finally {
+            runningLock.readLock().unlock();
+        }
+        flush();
+        write(Collections.singletonList(auditEvent));
+    }
+
+    private void enqueue(AuditEvent auditEvent) {
+        if (!queue.offer(auditEvent)) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    try {
+                        queue.put(auditEvent);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        droppedCount.incrementAndGet();
+                        logger.warn("Interrupted while waiting to save audit event: " + describe(auditEvent));
+                    }
+                    break;
+                case LOG:
+                    droppedCount.incrementAndGet();
+                    logger.warn("Audit queue is full, not saving audit event: " + describe(auditEvent));
+                    break;
+                default:
+                    droppedCount.incrementAndGet();
+                    break;
+            }
+        }
+        if (queue.size() >= flushSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Write all queued events to the database.
+     */
+    @ManagedOperation(description = "Write all queued audit events to the database")
+    public void flush() {
+        if (queue == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            while (true) {
+                List<AuditEvent> batch = inFlight;
+                if (batch.isEmpty()) {
+                    batch = nextBatch();
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                }
+                long start = System.currentTimeMillis();
+                // odd while a batch is being written (see find)
+                writeCount.incrementAndGet();
+                try {
+                    try {
+                        write(batch);
+                        failedAttempts = 0;
+                        long elapsed = System.currentTimeMillis() - start;
+                        flushCount.incrementAndGet();
+                        flushMillis.addAndGet(elapsed);
+                        if (elapsed > maxFlushMillis) {
+                            maxFlushMillis = elapsed;
+                        }
+                    } catch (RuntimeException e) {
+                        if (++failedAttempts <= maxRetries) {
+                            logger.error("Could not save " + batch.size() + " audit events, will try again", e);
+                            return;
+                        }
+                        failedAttempts = 0;
+                        droppedCount.addAndGet(batch.size());
+                        logger.error("Could not save " + batch.size() + " audit events, dropping them", e);
+                        for (AuditEvent auditEvent : batch) {
+                            logger.warn("Not saving audit event: " + describe(auditEvent));
+                        }
+                    }
+                    inFlight = Collections.emptyList();
+                } finally {
+                    writeCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the events at the head of the queue to {@link #inFlight}. They are
+     * copied before they are removed, so for a moment they are in both.
+     */
+    private List<AuditEvent> nextBatch() {
+        List<AuditEvent> batch = new ArrayList<AuditEvent>(flushSize);
+        for (Iterator<AuditEvent> iterator = queue.iterator(); iterator.hasNext() && batch.size() < flushSize;) {
+            batch.add(iterator.next());
+        }
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        inFlight = Collections.unmodifiableList(batch);
+        // only the writer removes events, so the head is still this batch
+        for (int i = 0; i < batch.size(); i++) {
+            queue.poll();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Save some events, in the order they were logged. Subclasses can
+     * override this to decide what is stored, calling {@link #insert(List)}
+     * for the events they keep.
+     */
+    protected void write(List<AuditEvent> events) {
+        insert(events);
+    }
+
+    /**
+     * Insert rows for the events with a single batch statement.
+     */
+    protected void insert(List<AuditEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<Object[]>(events.size());
+        for (AuditEvent auditEvent : events) {
+            args.add(new Object[] { auditEvent.getPrincipalId(), auditEvent.getType().getCode(),
+                            truncate(auditEvent.getOrigin()), truncate(auditEvent.getData()),
+                            new Timestamp(auditEvent.getTime()), auditEvent.getIdentityZoneId() });
+        }
+        if (args.size() == 1) {
+            template.update(INSERT_SQL, args.get(0));
+        }
+        else {
+            template.batchUpdate(INSERT_SQL, args);
+        }
+    }
+
+    private static String truncate(String value) {
+        value = value == null ? "" : value;
+        return value.length() > 255 ? value.substring(0, 255) : value;
+    }
+
+    private static String describe(AuditEvent auditEvent) {
+        return String.format("%s ('%s'): principal=%s, origin=[%s], identityZoneId=[%s]", auditEvent.getType().name(),
+                        auditEvent.getData(), auditEvent.getPrincipalId(), auditEvent.getOrigin(),
+                        auditEvent.getIdentityZoneId());
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Queue Depth")
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Dropped")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Flush Count")
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Flush Average Latency (ms)")
+    public long getAverageFlushMillis() {
+        long count = flushCount.get();
+        return count == 0 ? 0 : flushMillis.get() / count;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Flush Maximum Latency (ms)")
+    public long getMaxFlushMillis() {
+        return maxFlushMillis;
     }
 
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
@@ -13,6 +13,8 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -27,6 +29,10 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
 
     private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
 
+    private long purgeIntervalMillis = 0;
+
+    private volatile long lastPurge = 0;
+
     public JdbcFailedLoginCountingAuditService(DataSource dataSource) {
         super(dataSource);
     }
@@ -38,17 +44,21 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         this.saveDataPeriodMillis = saveDataPeriodMillis;
     }
 
+    /**
+     * @param purgeIntervalSeconds the minimum time between deletes of data
+     *            older than the save period (default 0, which deletes it
+     *            whenever a failure is saved)
+     */
+    public void setPurgeIntervalSeconds(int purgeIntervalSeconds) {
+        this.purgeIntervalMillis = purgeIntervalSeconds * 1000l;
+    }
+
     @Override
     public void log(AuditEvent auditEvent) {
         switch (auditEvent.getType()) {
             case UserAuthenticationSuccess:
             case PasswordChangeSuccess:
-                getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
-                break;
             case UserAuthenticationFailure:
-                getJdbcTemplate().update("delete from sec_audit where created < ?",
-                                new Timestamp(System.currentTimeMillis()
-                                                - saveDataPeriodMillis));
                 super.log(auditEvent);
                 break;
             default:
@@ -56,4 +66,54 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         }
     }
 
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        List<AuditEvent> events = super.find(principal, after);
+        // a success that is still queued will delete the failures before it
+        for (int i = 0; i < events.size(); i++) {
+            switch (events.get(i).getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    return new ArrayList<AuditEvent>(events.subList(0, i));
+                default:
+                    break;
+            }
+        }
+        return events;
+    }
+
+    @Override
+    protected void write(List<AuditEvent> events) {
+        List<AuditEvent> failures = new ArrayList<AuditEvent>();
+        for (AuditEvent auditEvent : events) {
+            switch (auditEvent.getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    insertFailures(failures);
+                    failures.clear();
+                    getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
+                    break;
+                case UserAuthenticationFailure:
+                    failures.add(auditEvent);
+                    break;
+                default:
+                    break;
+            }
+        }
+        insertFailures(failures);
+    }
+
+    private void insertFailures(List<AuditEvent> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastPurge >= purgeIntervalMillis) {
+            lastPurge = now;
+            getJdbcTemplate().update("delete from sec_audit where created < ?",
+                            new Timestamp(now - saveDataPeriodMillis));
+        }
+        insert(failures);
+    }
+
 }
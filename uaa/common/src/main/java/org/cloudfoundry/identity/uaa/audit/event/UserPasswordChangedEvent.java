@@ -0,0 +1,27 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit.event;
+
+/**
+ * Published when the password of a user has been changed, so that listeners
+ * in this module can recognize it without depending on the module that
+ * publishes it.
+ */
+public interface UserPasswordChangedEvent {
+
+    /**
+     * @return the id of the user whose password was changed
+     */
+    String getUserId();
+
+}
@@ -16,6 +16,9 @@ public class AccountNotVerifiedExceptionTranslator extends DefaultWebResponseExc
         if (e instanceof AccountNotVerifiedException) {
             return handleOAuth2Exception(new ForbiddenException(e.getMessage(), e));
         }
+        if (e instanceof AuthenticationOverloadedException) {
+            return handleOAuth2Exception(new TemporarilyUnavailableException(e.getMessage(), e));
+        }
 
         return super.translate(e);
     }
@@ -49,4 +52,20 @@ public class AccountNotVerifiedExceptionTranslator extends DefaultWebResponseExc
         }
 
     }
+
+    private static class TemporarilyUnavailableException extends OAuth2Exception {
+
+        public TemporarilyUnavailableException(String msg, Throwable t) {
+            super(msg, t);
+        }
+
+        public String getOAuth2ErrorCode() {
+            return "temporarily_unavailable";
+        }
+
+        public int getHttpErrorCode() {
+            return 503;
+        }
+
+    }
 }
@@ -0,0 +1,26 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication;
+
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * Thrown when a password can't be checked because too many are already
+ * waiting to be checked. The client should try again later.
+ */
+public class AuthenticationOverloadedException extends AuthenticationException {
+
+    public AuthenticationOverloadedException(String msg) {
+        super(msg);
+    }
+}
@@ -17,14 +17,34 @@ package org.cloudfoundry.identity.uaa.ldap.extension;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A LDAP authority populator that can recursively search static nested groups.
@@ -54,15 +74,61 @@ import java.util.Set;
  * ou: java-developer
  * </pre>
  * </p>
- * During an authentication
+ * During an authentication the groups are found with one search per group, depth first.
+ * <p>
+ * With {@link #setBreadthFirst(boolean) breadthFirst} the groups are resolved one level at a time instead:
+ * the members of all the groups found on one level are searched for with a single filter
+ * (<code>(|(member=...)(member=...))</code>), split into filters of at most
+ * {@link #setMaxFilterSize(int) maxFilterSize} groups, and with {@link #setSearchThreads(int) searchThreads}
+ * greater than one those searches run in parallel, each on its own (ideally pooled) context.
+ * Against Active Directory {@link #setUseMatchingRuleInChain(boolean) useMatchingRuleInChain} leaves the
+ * recursion to the server, and all the groups are found with one search.
+ * </p>
+ * <p>
+ * The results of the group searches can be kept for {@link #setCacheSeconds(int) cacheSeconds}. They are
+ * cached by filter and DNs, so the searches for the groups of a group are shared by all its members, and
+ * a user logging in again within that time doesn't need any searches at all.
+ * </p>
  */
 
-public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator {
+@ManagedResource
+public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator implements DisposableBean {
     private static final Log logger = LogFactory.getLog(NestedLdapAuthoritiesPopulator.class);
 
+    /**
+     * Active Directory's LDAP_MATCHING_RULE_IN_CHAIN, which matches all the groups a DN is
+     * a direct or nested member of.
+     */
+    public static final String LDAP_MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+
+    private static final Pattern MEMBER_FILTER = Pattern.compile("([\\w;-]+)=\\{0\\}");
+
     private Set<String> attributeNames;
 
     private int maxSearchDepth = 10;
+
+    private boolean breadthFirst = false;
+
+    private int maxFilterSize = 50;
+
+    private ExecutorService executor;
+
+    private boolean useMatchingRuleInChain = false;
+
+    private int cacheSeconds = 0;
+
+    private int cacheMaxEntries = 10000;
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    private final Map<List<Object>, CachedSearch> cache = new LinkedHashMap<List<Object>, CachedSearch>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedSearch> eldest) {
+            return size() > cacheMaxEntries;
+        }
+    };
     /**
      * Constructor for group search scenarios. <tt>userRoleAttributes</tt> may still be
      * set as a property.
@@ -82,11 +148,205 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
 
         Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
 
-        performNestedSearch(userDn, username, authorities, getMaxSearchDepth());
+        String inChainFilter = isUseMatchingRuleInChain() ? getMatchingRuleInChainFilter() : null;
+        if (inChainFilter != null) {
+            performMatchingRuleInChainSearch(userDn, username, inChainFilter, authorities);
+        } else if (isBreadthFirst()) {
+            performBreadthFirstSearch(userDn, username, authorities);
+        } else {
+            performNestedSearch(userDn, username, authorities, getMaxSearchDepth());
+        }
 
         return authorities;
     }
 
+    /**
+     * Finds all the groups of a user with one search, letting Active Directory follow the nested groups.
+     */
+    protected void performMatchingRuleInChainSearch(String userDn, String username, String filter, Set<GrantedAuthority> authorities) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Searching for nested roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
+                + filter + " in search base '" + getGroupSearchBase() + "'");
+        }
+        Set<Map<String,String[]>> userRoles = search(filter, new String[]{userDn, username}, getSearchAttributeNames());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Roles from search: " + userRoles);
+        }
+
+        for (Map<String,String[]> record : userRoles) {
+            addRoles(record, authorities);
+        }
+    }
+
+    /**
+     * Finds the groups of a user one level at a time, with one search (or one per
+     * <code>maxFilterSize</code> groups) for all the groups found on the level before.
+     */
+    protected void performBreadthFirstSearch(String userDn, String username, Set<GrantedAuthority> authorities) {
+        String[] attributes = getSearchAttributeNames();
+        Set<String> searched = new HashSet<String>();
+        Map<String,String> frontier = new LinkedHashMap<String,String>();
+        frontier.put(userDn, username);
+
+        for (int depth = getMaxSearchDepth(); depth > 0 && !frontier.isEmpty(); depth--) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Searching for roles of " + frontier.keySet() + " for user '" + username + "', with filter "
+                    + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+            }
+            searched.addAll(frontier.keySet());
+            Map<String,String> next = new LinkedHashMap<String,String>();
+            for (Map<String,String[]> record : searchLevel(frontier, attributes)) {
+                String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
+                String roleName = addRoles(record, authorities);
+                if (!searched.contains(dn)) {
+                    next.put(dn, roleName);
+                }
+            }
+            frontier = next;
+        }
+
+        if (!frontier.isEmpty()) {
+            logger.debug("Search aborted, max depth reached,"+
+                " for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
+                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+        }
+    }
+
+    private Set<Map<String,String[]>> searchLevel(Map<String,String> frontier, final String[] attributes) {
+        List<Map.Entry<String,String>> entries = new ArrayList<Map.Entry<String,String>>(frontier.entrySet());
+        List<Callable<Set<Map<String,String[]>>>> searches = new ArrayList<Callable<Set<Map<String,String[]>>>>();
+        for (int start = 0; start < entries.size(); start += getMaxFilterSize()) {
+            List<Map.Entry<String,String>> chunk = entries.subList(start, Math.min(entries.size(), start + getMaxFilterSize()));
+            final Object[] params = new Object[chunk.size() * 2];
+            final String filter = buildFilter(chunk, params);
+            searches.add(new Callable<Set<Map<String,String[]>>>() {
+                @Override
+                public Set<Map<String,String[]>> call() throws Exception {
+                    return search(filter, params, attributes);
+                }
+            });
+        }
+
+        Set<Map<String,String[]>> result = new HashSet<Map<String,String[]>>();
+        if (executor == null || searches.size() == 1) {
+            for (Callable<Set<Map<String,String[]>>> search : searches) {
+                try {
+                    result.addAll(search.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return result;
+        }
+
+        try {
+            for (Future<Set<Map<String,String[]>>> future : executor.invokeAll(searches)) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching for nested groups", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to search for nested groups", e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * ORs the group search filter for each of the DNs together, numbering the parameters so that
+     * DN <code>i</code> is <code>{2i}</code> and its name <code>{2i+1}</code>. The values are
+     * left as parameters so they are escaped by the template.
+     */
+    private String buildFilter(List<Map.Entry<String,String>> chunk, Object[] params) {
+        if (chunk.size() == 1) {
+            params[0] = chunk.get(0).getKey();
+            params[1] = chunk.get(0).getValue();
+            return getGroupSearchFilter();
+        }
+        StringBuilder filter = new StringBuilder("(|");
+        for (int i = 0; i < chunk.size(); i++) {
+            String single = MessageFormat.format(getGroupSearchFilter(), "{" + (2 * i) + "}", "{" + (2 * i + 1) + "}");
+            filter.append(single.startsWith("(") ? single : "(" + single + ")");
+            params[2 * i] = chunk.get(i).getKey();
+            params[2 * i + 1] = chunk.get(i).getValue();
+        }
+        return filter.append(")").toString();
+    }
+
+    /**
+     * @return the group search filter with the matching rule in chain applied to the member
+     * attribute, or null if the filter doesn't have an <code>attribute={0}</code> to apply it to
+     */
+    protected String getMatchingRuleInChainFilter() {
+        Matcher matcher = MEMBER_FILTER.matcher(getGroupSearchFilter());
+        if (!matcher.find()) {
+            logger.debug("Group search filter " + getGroupSearchFilter() + " has no member attribute, not using "
+                + LDAP_MATCHING_RULE_IN_CHAIN);
+            return null;
+        }
+        return getGroupSearchFilter().substring(0, matcher.start()) + matcher.group(1) + ":" + LDAP_MATCHING_RULE_IN_CHAIN
+            + ":={0}" + getGroupSearchFilter().substring(matcher.end());
+    }
+
+    /**
+     * Searches the group search base, using the cached result of the same search if there is one.
+     */
+    protected Set<Map<String,String[]>> search(String filter, Object[] params, String[] attributes) {
+        if (cacheSeconds <= 0) {
+            return getLdapTemplate().searchForMultipleAttributeValues(getGroupSearchBase(), filter, params, attributes);
+        }
+        List<Object> key = new ArrayList<Object>(params.length + 1);
+        key.add(filter);
+        key.addAll(Arrays.asList(params));
+        long now = System.currentTimeMillis();
+        CachedSearch cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null && cached.expiresAt > now) {
+            cacheHitCount.incrementAndGet();
+            return new HashSet<Map<String,String[]>>(cached.records);
+        }
+        cacheMissCount.incrementAndGet();
+        Set<Map<String,String[]>> records = getLdapTemplate().searchForMultipleAttributeValues(getGroupSearchBase(), filter, params, attributes);
+        synchronized (cache) {
+            cache.put(key, new CachedSearch(new HashSet<Map<String,String[]>>(records), now + cacheSeconds * 1000l));
+        }
+        return records;
+    }
+
+    private String[] getSearchAttributeNames() {
+        if (StringUtils.hasText(getGroupRoleAttribute()) && !getAttributeNames().contains(getGroupRoleAttribute())) {
+            getAttributeNames().add(getGroupRoleAttribute());
+        }
+        return getAttributeNames().toArray(new String[getAttributeNames().size()]);
+    }
+
+    /**
+     * Adds an authority for each role of a group.
+     *
+     * @return the name of the group, to search for its own groups with
+     */
+    private String addRoles(Map<String,String[]> record, Set<GrantedAuthority> authorities) {
+        String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
+        String[] roleValues = record.get(getGroupRoleAttribute());
+        Set<String> roles = new HashSet<String>();
+        roles.addAll(Arrays.asList(roleValues!=null?roleValues:new String[0]));
+        for (String role : roles) {
+            if (isConvertToUpperCase()) {
+                role = role.toUpperCase();
+            }
+            authorities.add(new LdapAuthority(getRolePrefix() + role, dn, record));
+        }
+        return roles.size()>0 ? roles.iterator().next() : dn;
+    }
+
     protected void performNestedSearch(String userDn, String username, Set<GrantedAuthority> authorities, int depth) {
         if (depth==0) {
             //back out of recursion
@@ -105,8 +365,7 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
             getAttributeNames().add(getGroupRoleAttribute());
         }
 
-        Set<Map<String,String[]>> userRoles = getLdapTemplate().searchForMultipleAttributeValues(
-            getGroupSearchBase(),
+        Set<Map<String,String[]>> userRoles = search(
             getGroupSearchFilter(),
             new String[]{userDn, username},
             getAttributeNames().toArray(new String[getAttributeNames().size()]));
@@ -152,6 +411,123 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
         this.maxSearchDepth = maxSearchDepth;
     }
 
+    public boolean isBreadthFirst() {
+        return breadthFirst;
+    }
 
+    /**
+     * @param breadthFirst search for the groups of all the groups on one level at once,
+     *                     instead of one group at a time (default false)
+     */
+    public void setBreadthFirst(boolean breadthFirst) {
+        this.breadthFirst = breadthFirst;
+    }
+
+    public int getMaxFilterSize() {
+        return maxFilterSize;
+    }
+
+    /**
+     * @param maxFilterSize the maximum number of groups ORed together in one breadth first search filter (default 50)
+     */
+    public void setMaxFilterSize(int maxFilterSize) {
+        Assert.isTrue(maxFilterSize > 0, "maxFilterSize must be positive");
+        this.maxFilterSize = maxFilterSize;
+    }
+
+    /**
+     * @param searchThreads the number of breadth first searches for one level that run at the same time
+     *                      (default 1, i.e. one after the other on the calling thread). Each search uses
+     *                      its own context, so the context source should be pooled.
+     */
+    public void setSearchThreads(int searchThreads) {
+        Assert.isTrue(searchThreads > 0, "searchThreads must be positive");
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (searchThreads > 1) {
+            executor = Executors.newFixedThreadPool(searchThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ldap-group-search-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public boolean isUseMatchingRuleInChain() {
+        return useMatchingRuleInChain;
+    }
+
+    /**
+     * @param useMatchingRuleInChain find all the nested groups with one search using Active Directory's
+     *                               {@link #LDAP_MATCHING_RULE_IN_CHAIN} (default false)
+     */
+    public void setUseMatchingRuleInChain(boolean useMatchingRuleInChain) {
+        this.useMatchingRuleInChain = useMatchingRuleInChain;
+    }
+
+    /**
+     * @param cacheSeconds the time the result of a group search is kept and used for the same search
+     *                     (default 0, which disables the cache)
+     */
+    public void setCacheSeconds(int cacheSeconds) {
+        this.cacheSeconds = cacheSeconds;
+    }
+
+    /**
+     * @param cacheMaxEntries the maximum number of group searches to keep the results of (default 10000)
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    @ManagedOperation(description = "Remove all entries from the LDAP group search cache")
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "LDAP Group Search Cache Size")
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "LDAP Group Search Cache Hit Count")
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "LDAP Group Search Cache Miss Count")
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class CachedSearch {
+
+        private final Set<Map<String,String[]>> records;
+
+        private final long expiresAt;
+
+        private CachedSearch(Set<Map<String,String[]>> records, long expiresAt) {
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
 
 }
@@ -32,6 +32,7 @@ import org.cloudfoundry.identity.uaa.oauth.ClientDetailsValidator.Mode;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientDetailsModification;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
@@ -414,6 +415,17 @@ public class ClientAdminEndpoints implements InitializingBean {
     }
 
 
+    public SearchResults<?> listClientDetails(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) throws Exception {
+        return listClientDetails(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * List clients a page at a time. With a <code>cursor</code> (empty for the
+     * first page) the page is found by seeking on the sort key instead of
+     * counting and skipping, the response carries a <code>nextCursor</code>
+     * while there are more results, and the total is reported as -1.
+     */
     @RequestMapping(value = "/oauth/clients", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listClientDetails(
@@ -422,11 +434,24 @@ public class ClientAdminEndpoints implements InitializingBean {
                     @RequestParam(required = false, defaultValue = "client_id") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) throws Exception {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) throws Exception {
         List<ClientDetails> result = new ArrayList<ClientDetails>();
         List<ClientDetails> clients;
+        // the total is not computed when paging with a cursor
+        int total = -1;
+        String nextCursor = null;
         try {
-            clients = clientDetailsService.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+            if (cursor != null) {
+                startIndex = 1;
+                KeysetPage<ClientDetails> page = clientDetailsService.query(filter, sortBy,
+                                "ascending".equalsIgnoreCase(sortOrder), cursor, count);
+                clients = page.getResources();
+                nextCursor = page.getNextCursor();
+            } else {
+                clients = clientDetailsService.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+                total = clients.size();
+            }
             if (count > clients.size()) {
                 count = clients.size();
             }
@@ -438,14 +463,18 @@ public class ClientAdminEndpoints implements InitializingBean {
         }
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
-            return new SearchResults<ClientDetails>(Arrays.asList(SCIM_CLIENTS_SCHEMA_URI), result, startIndex, count,
-                            clients.size());
+            SearchResults<ClientDetails> results = new SearchResults<ClientDetails>(
+                            Arrays.asList(SCIM_CLIENTS_SCHEMA_URI), result, startIndex, count, total);
+            results.setNextCursor(nextCursor);
+            return results;
         }
 
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(result, startIndex, count, clients.size(), attributes,
-                            attributeNameMapper, Arrays.asList(SCIM_CLIENTS_SCHEMA_URI));
+            SearchResults<?> results = SearchResultsFactory.buildSearchResultFrom(result, startIndex, count, total,
+                            attributes, attributeNameMapper, Arrays.asList(SCIM_CLIENTS_SCHEMA_URI));
+            results.setNextCursor(nextCursor);
+            return results;
         } catch (SpelParseException e) {
             throw new UaaException("Invalid attributes: [" + attributesCommaSeparated + "]",
                             HttpStatus.BAD_REQUEST.value());
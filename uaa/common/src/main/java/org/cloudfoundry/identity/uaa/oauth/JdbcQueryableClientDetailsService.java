@@ -19,6 +19,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
@@ -63,13 +64,27 @@ public class JdbcQueryableClientDetailsService extends AbstractQueryable<ClientD
         return CLIENT_DETAILS_TABLE;
     }
 
+    @Override
+    protected String getIdColumnName() {
+        return "client_id";
+    }
+
     @Override
     public List<ClientDetails> query(String filter, String sortBy, boolean ascending) {
-    	if (StringUtils.hasText(filter)) {
+        return super.query(getZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public KeysetPage<ClientDetails> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, cursor, count);
+    }
+
+    private String getZoneFilter(String filter) {
+        if (StringUtils.hasText(filter)) {
             filter += " and";
         }
         filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-    	return super.query(filter, sortBy, ascending);
+        return filter;
     }
 
     @Override
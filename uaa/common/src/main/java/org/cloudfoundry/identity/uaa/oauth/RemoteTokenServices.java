@@ -14,26 +14,47 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
@@ -53,10 +74,21 @@ import org.springframework.web.client.RestTemplate;
  * If the endpoint returns a 400 response, this indicates that the token is
  * invalid.
  *
+ * If a token key endpoint URL is set, signed JWT access tokens are verified
+ * locally with the key obtained once from the /token_key endpoint, and
+ * /check_token is only consulted for tokens that cannot be verified that way.
+ * Note that locally verified tokens are only checked for their signature and
+ * expiry, not for changes to the user or client since they were issued.
+ *
+ * Results can optionally be cached for a short time (never beyond the expiry
+ * of the token). Concurrent requests for the same token that is not yet cached
+ * share a single check, and rejected tokens can be remembered as well.
+ *
  * @author Dave Syer
  * @author Luke Taylor
  *
  */
+@ManagedResource
 public class RemoteTokenServices implements ResourceServerTokenServices {
 
     protected final Log logger = LogFactory.getLog(getClass());
@@ -73,6 +105,40 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 
     private boolean storeClaims = false;
 
+    private String tokenKeyEndpointUrl;
+
+    private int keyRefreshIntervalSeconds = 30;
+
+    private volatile SignatureVerifier verifier;
+
+    private long lastKeyFetch = 0;
+
+    private int cacheMaxEntries = 0;
+
+    private int cacheMaxAgeSeconds = 60;
+
+    private int invalidTokenCacheSeconds = 0;
+
+    private final Map<String, CachedAuthentication> cache = new LinkedHashMap<String, CachedAuthentication>(16,
+                    0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedAuthentication> eldest) {
+            return size() > cacheMaxEntries;
+        }
+    };
+
+    private final ConcurrentMap<String, FutureTask<CachedAuthentication>> inFlight = new ConcurrentHashMap<String, FutureTask<CachedAuthentication>>();
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong remoteCheckCount = new AtomicLong();
+
+    private final AtomicLong remoteCheckTime = new AtomicLong();
+
     public RemoteTokenServices() {
         restTemplate = new RestTemplate();
         ((RestTemplate) restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
@@ -115,18 +181,159 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         this.clientSecret = clientSecret;
     }
 
+    /**
+     * Set the URL of the /token_key endpoint to verify JWT access tokens
+     * locally instead of calling /check_token for each of them.
+     *
+     * @param tokenKeyEndpointUrl the token key endpoint URL
+     */
+    public void setTokenKeyEndpointUrl(String tokenKeyEndpointUrl) {
+        this.tokenKeyEndpointUrl = tokenKeyEndpointUrl;
+    }
+
+    /**
+     * The minimum time between two requests to the token key endpoint
+     * (default 30 seconds), so tokens with bad signatures cannot cause a key
+     * lookup each. Tokens that fail local verification in the meantime are
+     * checked remotely.
+     *
+     * @param keyRefreshIntervalSeconds the minimum interval in seconds
+     */
+    public void setKeyRefreshIntervalSeconds(int keyRefreshIntervalSeconds) {
+        this.keyRefreshIntervalSeconds = keyRefreshIntervalSeconds;
+    }
+
+    /**
+     * @param cacheMaxEntries the maximum number of tokens whose result is
+     *            cached (default 0, which disables the cache)
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    /**
+     * @param cacheMaxAgeSeconds how long a successful result is cached at most
+     *            (default 60). It is never cached beyond the token expiry.
+     */
+    public void setCacheMaxAgeSeconds(int cacheMaxAgeSeconds) {
+        this.cacheMaxAgeSeconds = cacheMaxAgeSeconds;
+    }
+
+    /**
+     * @param invalidTokenCacheSeconds how long a rejected token is remembered
+     *            (default 0, which means it is checked again every time)
+     */
+    public void setInvalidTokenCacheSeconds(int invalidTokenCacheSeconds) {
+        this.invalidTokenCacheSeconds = invalidTokenCacheSeconds;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Cache Hit Count")
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Cache Miss Count")
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Coalesced Token Check Count")
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Remote Token Check Count")
+    public long getRemoteCheckCount() {
+        return remoteCheckCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Average Remote Token Check Time (ms)")
+    public long getAverageRemoteCheckTime() {
+        long count = remoteCheckCount.get();
+        return count == 0 ? 0 : remoteCheckTime.get() / count;
+    }
+
     @Override
-    public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+    public OAuth2Authentication loadAuthentication(final String accessToken) throws AuthenticationException {
+        if (cacheMaxEntries <= 0) {
+            return authenticate(accessToken).getAuthentication();
+        }
 
-        MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
-        formData.add("token", accessToken);
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
-        Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+        final String key = hash(accessToken);
+        CachedAuthentication cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && cached.expiresAt <= System.currentTimeMillis()) {
+                cache.remove(key);
+                cached = null;
+            }
+        }
+        if (cached != null) {
+            cacheHitCount.incrementAndGet();
+            return cached.getAuthentication();
+        }
+        cacheMissCount.incrementAndGet();
+
+        FutureTask<CachedAuthentication> task = new FutureTask<CachedAuthentication>(
+                        new Callable<CachedAuthentication>() {
+                            @Override
+                            public CachedAuthentication call() throws Exception {
+                                return authenticateAndCache(key, accessToken);
+                            }
+                        });
+        FutureTask<CachedAuthentication> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        else {
+            coalescedCount.incrementAndGet();
+        }
 
-        if (map.containsKey("error")) {
-            logger.debug("check_token returned error: " + map.get("error"));
-            throw new InvalidTokenException(accessToken);
+        try {
+            return running.get().getAuthentication();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to check token", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking token", e);
+        }
+    }
+
+    private CachedAuthentication authenticateAndCache(String key, String accessToken) {
+        CachedAuthentication result;
+        try {
+            result = authenticate(accessToken);
+        } catch (InvalidTokenException e) {
+            if (invalidTokenCacheSeconds <= 0) {
+                throw e;
+            }
+            result = new CachedAuthentication(null, e.getMessage(), System.currentTimeMillis()
+                            + invalidTokenCacheSeconds * 1000l);
+        }
+        if (result.expiresAt > System.currentTimeMillis()) {
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    private CachedAuthentication authenticate(String accessToken) {
+
+        Map<String, Object> map = null;
+        if (tokenKeyEndpointUrl != null) {
+            map = getLocallyVerifiedClaims(accessToken);
+        }
+        if (map == null) {
+            map = checkToken(accessToken);
         }
 
         Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
@@ -180,7 +387,110 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         Authentication userAuthentication = getUserAuthentication(map, scope);
 
         clientAuthentication.setApproved(true);
-        return new OAuth2Authentication(clientAuthentication.createOAuth2Request(), userAuthentication);
+        OAuth2Authentication authentication = new OAuth2Authentication(clientAuthentication.createOAuth2Request(),
+                        userAuthentication);
+
+        long expiresAt = System.currentTimeMillis() + cacheMaxAgeSeconds * 1000l;
+        Object exp = map.get(Claims.EXP);
+        if (exp instanceof Number) {
+            expiresAt = Math.min(expiresAt, ((Number) exp).longValue() * 1000l);
+        }
+        return new CachedAuthentication(authentication, null, expiresAt);
+    }
+
+    private Map<String, Object> checkToken(String accessToken) {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+        formData.add("token", accessToken);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+        long start = System.currentTimeMillis();
+        Map<String, Object> map;
+        try {
+            map = postForMap(checkTokenEndpointUrl, formData, headers);
+        } finally {
+            remoteCheckCount.incrementAndGet();
+            remoteCheckTime.addAndGet(System.currentTimeMillis() - start);
+        }
+
+        if (map.containsKey("error")) {
+            logger.debug("check_token returned error: " + map.get("error"));
+            throw new InvalidTokenException(accessToken);
+        }
+        return map;
+    }
+
+    /**
+     * @return the claims of the token if it is a JWT signed with the current
+     *         token key, or null if it has to be checked remotely
+     */
+    private Map<String, Object> getLocallyVerifiedClaims(String accessToken) {
+        Jwt jwt;
+        try {
+            jwt = JwtHelper.decode(accessToken);
+        } catch (RuntimeException e) {
+            logger.debug("Token is not a JWT, using check_token");
+            return null;
+        }
+
+        SignatureVerifier current = verifier;
+        if (current == null || !isValidSignature(jwt, current)) {
+            // The key may have been rotated since it was last fetched
+            current = refreshVerifier(current);
+            if (current == null || !isValidSignature(jwt, current)) {
+                logger.debug("Token signature could not be verified locally, using check_token");
+                return null;
+            }
+        }
+
+        Map<String, Object> claims;
+        try {
+            claims = mapper.readValue(jwt.getClaims(), new TypeReference<Map<String, Object>>() {
+            });
+        } catch (IOException e) {
+            throw new InvalidTokenException("Invalid token (could not read claims): " + accessToken);
+        }
+
+        Object exp = claims.get(Claims.EXP);
+        if (exp instanceof Number && ((Number) exp).longValue() * 1000l < System.currentTimeMillis()) {
+            throw new InvalidTokenException("Invalid access token (expired): " + accessToken);
+        }
+        return claims;
+    }
+
+    private boolean isValidSignature(Jwt jwt, SignatureVerifier verifier) {
+        try {
+            jwt.verifySignature(verifier);
+            return true;
+        } catch (InvalidSignatureException e) {
+            return false;
+        }
+    }
+
+    private synchronized SignatureVerifier refreshVerifier(SignatureVerifier stale) {
+        long now = System.currentTimeMillis();
+        if (verifier != stale || now - lastKeyFetch < keyRefreshIntervalSeconds * 1000l) {
+            // Another thread has already fetched the key, or it was fetched
+            // too recently to try again
+            return verifier;
+        }
+        lastKeyFetch = now;
+        try {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+            @SuppressWarnings("rawtypes")
+            Map map = restTemplate.exchange(tokenKeyEndpointUrl, HttpMethod.GET, new HttpEntity<Void>(headers),
+                            Map.class).getBody();
+            String key = map == null ? null : (String) map.get("value");
+            if (key == null) {
+                logger.debug("No key returned from token_key endpoint");
+                return stale;
+            }
+            verifier = key.startsWith("-----BEGIN") ? new RsaVerifier(key) : new MacSigner(key);
+            logger.debug("Fetched token key from " + tokenKeyEndpointUrl);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to fetch token key from " + tokenKeyEndpointUrl + ": " + e.getMessage());
+        }
+        return verifier;
     }
 
     private Authentication getUserAuthentication(Map<String, Object> map, Set<String> scope) {
@@ -217,6 +527,15 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         return result;
     }
 
+    private String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(Hex.encode(digest.digest(Utf8.encode(token))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256 algorithm available", e);
+        }
+    }
+
     private String getAuthorizationHeader(String clientId, String clientSecret) {
         String creds = String.format("%s:%s", clientId, clientSecret);
         try {
@@ -238,4 +557,31 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         return result;
     }
 
+    /**
+     * The outcome of a token check: either an authentication or the reason
+     * the token was rejected.
+     */
+    private static final class CachedAuthentication {
+
+        private final OAuth2Authentication authentication;
+        private final String error;
+        private final long expiresAt;
+
+        private CachedAuthentication(OAuth2Authentication authentication, String error, long expiresAt) {
+            this.authentication = authentication;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+
+        private OAuth2Authentication getAuthentication() {
+            if (authentication == null) {
+                throw new InvalidTokenException(error);
+            }
+            // Callers may set details on the result, so every caller gets
+            // its own instance
+            return new OAuth2Authentication(authentication.getOAuth2Request(),
+                            authentication.getUserAuthentication());
+        }
+    }
+
 }
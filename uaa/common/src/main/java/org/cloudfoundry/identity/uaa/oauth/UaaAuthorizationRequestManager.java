@@ -21,14 +21,13 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.cloudfoundry.identity.uaa.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.security.DefaultSecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
-import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.ScopeMatcher;
 import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
 import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -244,10 +243,10 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
             if ("client_credentials".equals(parameters.get("grant_type"))) {
                 validScope = AuthorityUtils.authorityListToSet(clientDetails.getAuthorities());
             }
-            Set<Pattern> validWildcards = constructWildcards(validScope);
+            ScopeMatcher validScopes = ScopeMatcher.forScopes(validScope);
             Set<String> scopes = OAuth2Utils.parseParameterList(parameters.get("scope"));
             for (String scope : scopes) {
-                if (!matches(validWildcards, scope)) {
+                if (!validScopes.matches(scope)) {
                     throw new InvalidScopeException("Invalid scope: " + scope
                                     + ". Did you know that you can get default requested scopes by simply sending no value?",
                                     validScope);
@@ -312,19 +311,19 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
     protected Set<String> intersectScopes(Set<String> requestedScopes, Set<String> clientScopes, Set<String> userScopes) {
         Set<String> result = new HashSet<>(userScopes);
 
-        Set<Pattern> clientWildcards = constructWildcards(clientScopes);
+        ScopeMatcher clientMatcher = ScopeMatcher.forScopes(clientScopes);
         for (Iterator<String> iter = result.iterator(); iter.hasNext();) {
             String scope = iter.next();
-            if (!matches(clientWildcards, scope)) {
+            if (!clientMatcher.matches(scope)) {
                 iter.remove();
             }
         }
 
-        Set<Pattern> requestedWildcards = constructWildcards(requestedScopes);
+        ScopeMatcher requestedMatcher = ScopeMatcher.compile(requestedScopes);
         // Weed out disallowed requestedScopes:
         for (Iterator<String> iter = result.iterator(); iter.hasNext();) {
             String scope = iter.next();
-            if (!matches(requestedWildcards, scope)) {
+            if (!requestedMatcher.matches(scope)) {
                 iter.remove();
             }
         }
@@ -332,14 +331,6 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
         return result;
     }
 
-    protected Set<Pattern> constructWildcards(Set<String> scopes) {
-        return UaaStringUtils.constructWildcards(scopes);
-    }
-
-    protected boolean matches(Set<Pattern> wildcards, String scope) {
-        return UaaStringUtils.matches(wildcards, scope);
-    }
-
     private Set<String> getResourceIds(ClientDetails clientDetails, Set<String> scopes) {
         Set<String> resourceIds = new LinkedHashSet<String>();
         //at a minimum - the resourceIds should contain the client this is intended for
@@ -12,7 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface ApprovalStore {
 
@@ -25,4 +27,13 @@ public interface ApprovalStore {
     public List<Approval> getApprovals(String filter);
 
     public List<Approval> getApprovals(String userId, String clientId);
+
+    /**
+     * Retrieve the approvals of several users at once.
+     *
+     * @param userIds the ids of the users
+     * @return the approvals of each user, keyed by user id. Users without
+     *         approvals may be missing from the result.
+     */
+    public Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds);
 }
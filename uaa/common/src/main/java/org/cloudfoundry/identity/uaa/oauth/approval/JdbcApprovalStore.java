@@ -18,7 +18,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -68,6 +73,11 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    private static final String GET_AUTHZ_FOR_USERS_SQL = String.format("select %s from %s where user_id in (:ids)",
+                    FIELDS, TABLE_NAME);
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -201,6 +211,26 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
     }
 
+    @Override
+    public Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds) {
+        Map<String, List<Approval>> result = new HashMap<String, List<Approval>>();
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(userIds));
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+            List<String> chunk = ids.subList(i, Math.min(ids.size(), i + MAX_IDS_PER_QUERY));
+            for (Approval approval : template.query(GET_AUTHZ_FOR_USERS_SQL,
+                            Collections.singletonMap("ids", chunk), rowMapper)) {
+                List<Approval> approvals = result.get(approval.getUserId());
+                if (approvals == null) {
+                    approvals = new ArrayList<Approval>();
+                    result.put(approval.getUserId(), approvals);
+                }
+                approvals.add(approval);
+            }
+        }
+        return result;
+    }
+
     @Override
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -21,7 +21,7 @@ import org.springframework.security.oauth2.provider.ClientDetails;
 /**
  * @author Dave Syer
  */
-abstract class AbstractClientAdminEvent extends AbstractUaaEvent {
+public abstract class AbstractClientAdminEvent extends AbstractUaaEvent {
 
     private ClientDetails client;
 
@@ -30,7 +30,7 @@ abstract class AbstractClientAdminEvent extends AbstractUaaEvent {
         this.client = client;
     }
 
-    ClientDetails getClient() {
+    public ClientDetails getClient() {
         return client;
     }
 
@@ -41,14 +41,15 @@ public class SignerProvider implements InitializingBean {
     private String signingKey = verifierKey;
     private Signer signer = new MacSigner(verifierKey);
     private String type = "MAC";
+    private volatile CachedVerifier cachedVerifier;
 
     @Override
     public void afterPropertiesSet() throws Exception {
         if (signer instanceof RsaSigner) {
             type = "RSA";
-            RsaVerifier verifier;
+            SignatureVerifier verifier;
             try {
-                verifier = new RsaVerifier(verifierKey);
+                verifier = getVerifier();
             } catch (Exception e) {
                 throw new RuntimeException("Unable to create an RSA verifier from verifierKey", e);
             }
@@ -89,13 +90,30 @@ public class SignerProvider implements InitializingBean {
         return verifierKey.startsWith("-----BEGIN");
     }
 
+    /**
+     * Returns a verifier for the current verification key. Parsing the key
+     * (in particular an RSA public key) is comparatively expensive, so the
+     * verifier is built once and reused until the signing or verifier key
+     * changes.
+     *
+     * @return a verifier for tokens signed by this provider
+     */
     public SignatureVerifier getVerifier() {
-        if (isAssymetricKey(signingKey)) {
-            return new RsaVerifier(verifierKey);
-        }
-        else {
-            return new MacSigner(verifierKey);
+        String signingKey = this.signingKey;
+        String verifierKey = this.verifierKey;
+        CachedVerifier cached = cachedVerifier;
+        if (cached == null || !cached.isFor(signingKey, verifierKey)) {
+            SignatureVerifier verifier;
+            if (isAssymetricKey(signingKey)) {
+                verifier = new RsaVerifier(verifierKey);
+            }
+            else {
+                verifier = new MacSigner(verifierKey);
+            }
+            cached = new CachedVerifier(signingKey, verifierKey, verifier);
+            cachedVerifier = cached;
         }
+        return cached.verifier;
     }
 
     /**
@@ -110,6 +128,7 @@ public class SignerProvider implements InitializingBean {
         key = key.trim();
 
         this.signingKey = key;
+        this.cachedVerifier = null;
 
         if (isAssymetricKey(key)) {
             signer = new RsaSigner(key);
@@ -154,8 +173,27 @@ public class SignerProvider implements InitializingBean {
             throw new IllegalArgumentException("Private key cannot be set as verifierKey property");
         }
         this.verifierKey = verifierKey;
+        this.cachedVerifier = null;
     }
 
+    /**
+     * A verifier together with the key material it was built from.
+     */
+    private static final class CachedVerifier {
 
+        private final String signingKey;
+        private final String verifierKey;
+        private final SignatureVerifier verifier;
+
+        private CachedVerifier(String signingKey, String verifierKey, SignatureVerifier verifier) {
+            this.signingKey = signingKey;
+            this.verifierKey = verifierKey;
+            this.verifier = verifier;
+        }
+
+        private boolean isFor(String signingKey, String verifierKey) {
+            return this.signingKey.equals(signingKey) && this.verifierKey.equals(verifierKey);
+        }
+    }
 
 }
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.cloudfoundry.identity.uaa.oauth.Claims.EXP;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+
+/**
+ * Size bounded cache of the claims of tokens whose signature has already been
+ * verified. Entries are keyed by a SHA-256 hash of the token value, so the
+ * tokens themselves are not retained, and never outlive the expiry of the
+ * token they belong to.
+ * <p>
+ * An entry is only returned for the same {@link SignatureVerifier} that was
+ * used to verify it, so a change of the verification key invalidates
+ * everything that was cached before.
+ */
+@ManagedResource
+public class TokenClaimsCache {
+
+    private int maxEntries = 10000;
+
+    private int maxAgeSeconds = 300;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final Map<String, CachedClaims> cache = new LinkedHashMap<String, CachedClaims>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedClaims> eldest) {
+            if (size() > maxEntries) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @param maxEntries the maximum number of tokens to remember (default
+     *            10000). Zero disables the cache.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param maxAgeSeconds the maximum time an entry is kept (default 300),
+     *            even if the token itself is valid for longer
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * @param token the encoded token
+     * @param verifier the verifier the caller would use to check the token
+     * @return the claims previously stored for this token and verifier, or
+     *         null if there are none or they have expired
+     */
+    public Map<String, Object> get(String token, SignatureVerifier verifier) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        String key = hash(token);
+        CachedClaims cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && (cached.verifier != verifier || cached.expiresAt <= System.currentTimeMillis())) {
+                cache.remove(key);
+                evictionCount.incrementAndGet();
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return cached.claims;
+    }
+
+    /**
+     * Remember the claims of a token that has been successfully verified.
+     *
+     * @param token the encoded token
+     * @param verifier the verifier that was used to check the token
+     * @param claims the decoded claims
+     * @return an unmodifiable copy of the claims, including the lists and
+     *         maps nested in them
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> put(String token, SignatureVerifier verifier, Map<String, Object> claims) {
+        Map<String, Object> result = (Map<String, Object>) unmodifiableCopy(claims);
+        if (maxEntries <= 0) {
+            return result;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + maxAgeSeconds * 1000l;
+        Object exp = claims.get(EXP);
+        if (exp instanceof Number) {
+            expiresAt = Math.min(expiresAt, ((Number) exp).longValue() * 1000l);
+        }
+        if (expiresAt <= now) {
+            return result;
+        }
+        String key = hash(token);
+        synchronized (cache) {
+            cache.put(key, new CachedClaims(verifier, result, expiresAt));
+        }
+        return result;
+    }
+
+    @ManagedOperation(description = "Remove all entries from the token claims cache")
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Claims Cache Size")
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Eviction Count")
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private static Object unmodifiableCopy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), unmodifiableCopy(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(copy);
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(unmodifiableCopy(element));
+            }
+            return Collections.unmodifiableList(copy);
+        }
+        return value;
+    }
+
+    private String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(Hex.encode(digest.digest(Utf8.encode(token))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256 algorithm available", e);
+        }
+    }
+
+    private static final class CachedClaims {
+
+        private final SignatureVerifier verifier;
+        private final Map<String, Object> claims;
+        private final long expiresAt;
+
+        private CachedClaims(SignatureVerifier verifier, Map<String, Object> claims, long expiresAt) {
+            this.verifier = verifier;
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -15,9 +15,8 @@ package org.cloudfoundry.identity.uaa.oauth.token;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Pattern;
 
-import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.ScopeMatcher;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.common.exceptions.InvalidScopeException;
 import org.springframework.security.oauth2.common.util.OAuth2Utils;
@@ -54,9 +53,9 @@ public class UaaOauth2RequestValidator implements OAuth2RequestValidator {
         }
 
         if (wildCardsAllowed) {
-            Set<Pattern> wildcards = UaaStringUtils.constructWildcards(clientScopes);
+            ScopeMatcher matcher = ScopeMatcher.forScopes(clientScopes);
             for (String scope : requestScopes) {
-                if (!UaaStringUtils.matches(wildcards, scope)) {
+                if (!matcher.matches(scope)) {
                     throw new InvalidScopeException("Invalid scope: " + scope, clientScopes);
                 }
             }
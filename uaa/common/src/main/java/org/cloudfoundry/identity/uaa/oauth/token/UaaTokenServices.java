@@ -39,6 +39,7 @@ import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.jwt.Jwt;
 import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
 import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
@@ -67,7 +68,6 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -121,6 +121,8 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private SignerProvider signerProvider = new SignerProvider();
 
+    private TokenClaimsCache claimsCache = null;
+
     private String issuer = null;
 
     private String tokenEndpoint = null;
@@ -191,7 +193,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> tokenScopes = (List<String>) claims.get(SCOPE);
 
         // default request scopes to what is in the refresh token
         Set<String> requestedScopes = request.getScope();
@@ -222,7 +224,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         @SuppressWarnings("unchecked")
         Map<String, String> additionalAuthorizationInfo = (Map<String, String>) claims.get(ADDITIONAL_AZ_ATTR);
 
-        Set<String> audience = new HashSet<>((ArrayList<String>)claims.get(AUD));
+        Set<String> audience = new HashSet<>((List<String>)claims.get(AUD));
 
         OAuth2AccessToken accessToken =
             createAccessToken(
@@ -619,10 +621,10 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.userDatabase = userDatabase;
     }
 
-    private void validateClient(String clientId) throws AuthenticationException {
+    private ClientDetails validateClient(String clientId) throws AuthenticationException {
         if (clientId!=null) {
             try {
-                clientDetailsService.loadClientByClientId(clientId);
+                return clientDetailsService.loadClientByClientId(clientId);
             } catch (NoSuchClientException x) {
                 throw new OAuth2AccessDeniedException("Invalid client:"+clientId);
             } catch (ClientRegistrationException x) {
@@ -631,6 +633,43 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
                 throw new OAuth2AccessDeniedException("Invalid client:"+clientId);
             }
         }
+        return null;
+    }
+
+    /**
+     * Check that an access token is still valid, verifying its signature and
+     * reading its claims only once. The client is loaded once and used for
+     * both the client and the approval checks, and user tokens are rejected
+     * if the user has changed since the token was issued.
+     *
+     * @param accessToken the encoded token
+     * @return the claims of the token
+     * @throws InvalidTokenException if the token is not valid
+     */
+    public Map<String, Object> validateToken(String accessToken) throws AuthenticationException {
+        Map<String, Object> claims = getClaimsForToken(accessToken);
+
+        Integer expiration = (Integer) claims.get(EXP);
+        if (expiration != null && new Date(expiration * 1000l).before(new Date())) {
+            throw new InvalidTokenException("Token has expired");
+        }
+
+        String clientId = (String) claims.get(CLIENT_ID);
+        ClientDetails client = validateClient(clientId);
+        String cid = (String) claims.get(CID);
+        if (cid != null && !cid.equals(clientId)) {
+            validateClient(cid);
+        }
+
+        // Only check user access tokens
+        if (null != claims.get(EMAIL)) {
+            // the approvals are checked against the client
+            if (client == null) {
+                throw new InvalidTokenException("Invalid access token (no client id): " + accessToken);
+            }
+            validateUserToken(accessToken, claims, client);
+        }
+        return claims;
     }
 
     @Override
@@ -650,12 +689,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> scopes = (List<String>) claims.get(SCOPE);
 
         AuthorizationRequest authorizationRequest = new AuthorizationRequest((String) claims.get(CLIENT_ID),
                         scopes);
 
-        ArrayList<String> rids = (ArrayList<String>) claims.get(AUD);
+        List<String> rids = (List<String>) claims.get(AUD);
         //TODO - Fix null resource IDs for a client_credentials request to /oauth/token
         Set<String> resourceIds = Collections.unmodifiableSet(rids==null?new HashSet<String>():new HashSet<>(rids));
         authorizationRequest.setResourceIds(resourceIds);
@@ -711,7 +750,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> scopes = (List<String>) claims.get(SCOPE);
         if (null != scopes && scopes.size() > 0) {
             token.setScope(new HashSet<String>(scopes));
         }
@@ -720,36 +759,42 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         // Only check user access tokens
         if (null != email) {
-            String userId = (String)claims.get(USER_ID);
+            String clientId = (String) claims.get(CLIENT_ID);
+            validateUserToken(accessToken, claims, clientDetailsService.loadClientByClientId(clientId));
+        }
 
-            UaaUser user = userDatabase.retrieveUserById(userId);
+        return token;
+    }
 
-            Integer accessTokenIssuedAt = (Integer) claims.get(IAT);
-            long accessTokenIssueDate = accessTokenIssuedAt.longValue() * 1000l;
+    /**
+     * Reject a user token if the user has been modified since it was issued,
+     * or if the approvals of its scopes have expired or been updated since.
+     */
+    private void validateUserToken(String accessToken, Map<String, Object> claims, ClientDetails client) {
+        String userId = (String)claims.get(USER_ID);
 
-            // If the user changed their password, expire the access token
-            if (user.getModified().after(new Date(accessTokenIssueDate))) {
-                logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
-                                + new Date(accessTokenIssueDate));
-                throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
-            }
+        UaaUser user = userDatabase.retrieveUserById(userId);
 
-            // Check approvals to make sure they're all valid, approved and not
-            // more recent
-            // than the token itself
-            String clientId = (String) claims.get(CLIENT_ID);
-            ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+        Integer accessTokenIssuedAt = (Integer) claims.get(IAT);
+        long accessTokenIssueDate = accessTokenIssuedAt.longValue() * 1000l;
 
-            @SuppressWarnings("unchecked")
-            ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
-            Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
-            if (autoApprovedScopes.containsAll(tokenScopes)) {
-                return token;
-            }
-            checkForApproval(userId, clientId, tokenScopes, autoApprovedScopes, new Date(accessTokenIssueDate));
+        // If the user changed their password, expire the access token
+        if (user.getModified().after(new Date(accessTokenIssueDate))) {
+            logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
+                            + new Date(accessTokenIssueDate));
+            throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
         }
 
-        return token;
+        // Check approvals to make sure they're all valid, approved and not
+        // more recent
+        // than the token itself
+        @SuppressWarnings("unchecked")
+        List<String> tokenScopes = (List<String>) claims.get(SCOPE);
+        Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
+        if (autoApprovedScopes.containsAll(tokenScopes)) {
+            return;
+        }
+        checkForApproval(userId, client.getClientId(), tokenScopes, autoApprovedScopes, new Date(accessTokenIssueDate));
     }
 
     private Set<String> getAutoApprovedScopes(Object grantType, Collection<String> tokenScopes, ClientDetails client) {
@@ -777,27 +822,37 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
     }
 
     private Map<String, Object> getClaimsForToken(String token) {
+        SignatureVerifier verifier = signerProvider.getVerifier();
+        Map<String, Object> claims = claimsCache == null ? null : claimsCache.get(token, verifier);
+        if (claims == null) {
+            claims = decodeAndVerifyClaims(token, verifier);
+            if (claimsCache != null) {
+                claims = claimsCache.put(token, verifier, claims);
+            }
+        }
+
+        if (getTokenEndpoint()!=null && !getTokenEndpoint().equals(claims.get(ISS))) {
+            throw new InvalidTokenException("Invalid issuer for token:"+claims.get(ISS));
+        }
+
+        return claims;
+    }
+
+    private Map<String, Object> decodeAndVerifyClaims(String token, SignatureVerifier verifier) {
         Jwt tokenJwt = null;
         try {
-            tokenJwt = JwtHelper.decodeAndVerify(token, signerProvider.getVerifier());
+            tokenJwt = JwtHelper.decodeAndVerify(token, verifier);
         } catch (Throwable t) {
             logger.debug("Invalid token (could not decode)");
             throw new InvalidTokenException("Invalid token (could not decode): " + token);
         }
 
-        Map<String, Object> claims = null;
         try {
-            claims = mapper.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
+            return mapper.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
             });
         } catch (Exception e) {
             throw new IllegalStateException("Cannot read token claims", e);
         }
-
-        if (getTokenEndpoint()!=null && !getTokenEndpoint().equals(claims.get(ISS))) {
-            throw new InvalidTokenException("Invalid issuer for token:"+claims.get(ISS));
-        }
-
-        return claims;
     }
 
     /**
@@ -833,6 +888,15 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.signerProvider = signerProvider;
     }
 
+    /**
+     * @param claimsCache an optional cache of the claims of already verified
+     *            tokens, to avoid verifying and parsing the same token again
+     *            on every request
+     */
+    public void setClaimsCache(TokenClaimsCache claimsCache) {
+        this.claimsCache = claimsCache;
+    }
+
     public void setDefaultUserAuthorities(Set<String> defaultUserAuthorities) {
         this.defaultUserAuthorities = defaultUserAuthorities;
     }
@@ -20,6 +20,22 @@ public interface Queryable<T> {
 
     List<T> query(String filter, String sortBy, boolean ascending);
 
+    /**
+     * Fetch one page of results by seeking past the last row of the previous
+     * page on the sort key (with the id as a tie breaker), instead of counting
+     * the results and skipping to an offset. Rows where the sort key is null
+     * sort after all the others.
+     *
+     * @param filter the filter to apply
+     * @param sortBy the attribute to sort by (null means the id)
+     * @param ascending the sort order
+     * @param cursor the cursor of the previous page, or null for the first
+     *            page
+     * @param count the maximum number of results in the page
+     * @return the page of results
+     */
+    KeysetPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count);
+
     int delete(String filter);
 
 }
@@ -15,6 +15,8 @@ package org.cloudfoundry.identity.uaa.rest;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
 /**
  * @author Dave Syer
  * 
@@ -26,6 +28,7 @@ public class SearchResults<T> {
     private final int itemsPerPage;
     private final int totalResults;
     private final Collection<String> schemas;
+    private String nextCursor;
 
     public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
                     int totalResults) {
@@ -48,6 +51,10 @@ public class SearchResults<T> {
         return itemsPerPage;
     }
 
+    /**
+     * @return the total number of results matching the query, or -1 if it
+     *         was not computed (e.g. when paging with a cursor)
+     */
     public int getTotalResults() {
         return totalResults;
     }
@@ -56,6 +63,19 @@ public class SearchResults<T> {
         return resources;
     }
 
+    /**
+     * @return the cursor to request the next page with, if the results were
+     *         fetched with keyset pagination and there are more of them
+     */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("SearchResults[schemas:");
@@ -12,10 +12,17 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -36,6 +43,8 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
 
     private int pageSize = 200;
 
+    private boolean lazyCount = false;
+
     protected AbstractQueryable(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory,
                     RowMapper<T> rowMapper) {
         this.jdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
@@ -47,6 +56,10 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         this.queryConverter = queryConverter;
     }
 
+    protected SearchQueryConverter getQueryConverter() {
+        return queryConverter;
+    }
+
     /**
      * The maximum number of items fetched from the database in one hit. If less
      * than or equal to zero, then there is no
@@ -62,6 +75,19 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         return pageSize;
     }
 
+    /**
+     * Only count the results of a query when the size of the list is asked
+     * for, and not at all if they fit in the first page. Iterating or checking
+     * whether the results are empty then never needs a separate
+     * <code>count(*)</code> query, but the size reflects the state of the
+     * database when it is first asked for rather than when the query was run.
+     * 
+     * @param lazyCount the flag to set (default false)
+     */
+    public void setLazyCount(boolean lazyCount) {
+        this.lazyCount = lazyCount;
+    }
+
     public int delete(String filter) {
         SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, null, false);
         logger.debug("Filtering groups with SQL: " + where);
@@ -89,7 +115,8 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
             String completeSql = getQuerySQL(filter, where);
             logger.debug("complete sql: " + completeSql + ", params: " + where.getParams());
             if (pageSize > 0 && pageSize < Integer.MAX_VALUE) {
-                result = pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize);
+                result = pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize,
+                                lazyCount);
             }
             else {
                 result = jdbcTemplate.query(completeSql, where.getParams(), rowMapper);
@@ -101,6 +128,97 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         }
     }
 
+    @Override
+    public KeysetPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        if (count < 1) {
+            return new KeysetPage<T>(Collections.<T> emptyList(), cursor);
+        }
+        final String idColumn = getIdColumnName();
+        if (sortBy == null) {
+            sortBy = idColumn;
+        }
+        if (filter == null || filter.trim().length() == 0) {
+            filter = idColumn + " pr";
+        }
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
+        // the converter appends the (mapped) sort column to the where clause
+        String whereSql = where.getSql();
+        int orderBy = whereSql.lastIndexOf(" ORDER BY ");
+        final String sortColumn = whereSql.substring(orderBy + " ORDER BY ".length(), whereSql.lastIndexOf(' '));
+        if (!sortColumn.matches("[a-zA-Z_][a-zA-Z0-9_.]*")) {
+            throw new IllegalArgumentException("Invalid sort field: " + sortBy);
+        }
+        String condition = whereSql.substring(0, orderBy);
+        Map<String, Object> params = new HashMap<String, Object>(where.getParams());
+
+        String comparator = ascending ? ">" : "<";
+        String valueParam = where.getParamPrefix() + "seek_value";
+        String idParam = where.getParamPrefix() + "seek_id";
+        if (cursor != null && cursor.length() > 0) {
+            KeysetCursor position = KeysetCursor.decode(cursor);
+            if (!position.matches(sortColumn, ascending)) {
+                throw new IllegalArgumentException("Cursor does not match the sort order: " + cursor);
+            }
+            params.put(idParam, position.getId());
+            if (sortColumn.equals(idColumn)) {
+                condition += " AND " + idColumn + " " + comparator + " :" + idParam;
+            } else if (position.getValue() == null) {
+                // nulls sort after every value, so they come last when
+                // ascending and first when descending
+                condition += String.format(" AND (%1$s IS NULL AND %2$s %3$s :%4$s%5$s)", sortColumn, idColumn,
+                                comparator, idParam, ascending ? "" : " OR " + sortColumn + " IS NOT NULL");
+            } else {
+                params.put(valueParam, position.getValue());
+                condition += String.format(" AND (%1$s %2$s :%3$s OR (%1$s = :%3$s AND %4$s %2$s :%5$s)%6$s)",
+                                sortColumn, comparator, valueParam, idColumn, idParam,
+                                ascending ? " OR " + sortColumn + " IS NULL" : "");
+            }
+        }
+        String order = ascending ? " ASC" : " DESC";
+        if (sortColumn.equals(idColumn)) {
+            condition += " ORDER BY " + idColumn + order;
+        } else {
+            // databases disagree on where nulls sort, so make it explicit
+            condition += " ORDER BY CASE WHEN " + sortColumn + " IS NULL THEN 1 ELSE 0 END" + order + ", "
+                            + sortColumn + order + ", " + idColumn + order;
+        }
+        String sql = getQuerySQL(filter, new SearchQueryConverter.ProcessedFilter(condition, params));
+        sql = pagingListFactory.getLimitSqlAdapter().getLimitSql(sql, 0, count + 1);
+        logger.debug("keyset sql: " + sql + ", params: " + params);
+
+        // the column label is the column name without any table alias
+        final String sortLabel = sortColumn.substring(sortColumn.lastIndexOf('.') + 1);
+        final String idLabel = idColumn.substring(idColumn.lastIndexOf('.') + 1);
+        final List<KeysetCursor> positions = new ArrayList<KeysetCursor>();
+        final boolean seekAscending = ascending;
+        List<T> result;
+        try {
+            result = jdbcTemplate.query(sql, params, new RowMapper<T>() {
+                @Override
+                public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+                    positions.add(new KeysetCursor(sortColumn, seekAscending, rs.getObject(sortLabel), rs.getString(idLabel)));
+                    return rowMapper.mapRow(rs, rowNum);
+                }
+            });
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+        if (result.size() <= count) {
+            return new KeysetPage<T>(result, null);
+        }
+        return new KeysetPage<T>(result.subList(0, count), positions.get(count - 1).encode());
+    }
+
+    /**
+     * @return the column that uniquely identifies a row, used to break ties
+     *         between rows with the same sort key in keyset queries (default
+     *         "id")
+     */
+    protected String getIdColumnName() {
+        return "id";
+    }
+
     protected String getQuerySQL(String filter, SearchQueryConverter.ProcessedFilter where) {
         return filter == null || filter.trim().length()==0 ?
         getBaseSqlQuery() :
@@ -39,7 +39,7 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
  */
 public class JdbcPagingList<E> extends AbstractList<E> {
 
-    private final int size;
+    private int size = -1;
 
     private int start = 0;
 
@@ -69,32 +69,63 @@ public class JdbcPagingList<E> extends AbstractList<E> {
 
     public JdbcPagingList(NamedParameterJdbcTemplate jdbcTemplate, LimitSqlAdapter limitSqlAdapter, String sql,
                     Map<String, ?> args, RowMapper<E> mapper, int pageSize) {
+        this(jdbcTemplate, limitSqlAdapter, sql, args, mapper, pageSize, false);
+    }
+
+    /**
+     * @param lazyCount if true the total number of rows is not counted until
+     *            {@link #size()} is called, and not at all if the first page
+     *            holds all of them. Iterating the list never needs the count.
+     */
+    public JdbcPagingList(NamedParameterJdbcTemplate jdbcTemplate, LimitSqlAdapter limitSqlAdapter, String sql,
+                    Map<String, ?> args, RowMapper<E> mapper, int pageSize, boolean lazyCount) {
         this.parameterJdbcTemplate = jdbcTemplate;
         this.sql = sql;
         this.args = args;
         this.mapper = mapper;
-        this.size = parameterJdbcTemplate.queryForInt(getCountSql(sql), args);
         this.pageSize = pageSize;
         this.limitSqlAdapter = limitSqlAdapter;
+        if (!lazyCount) {
+            this.size = count();
+        }
     }
 
     @Override
     public E get(int index) {
-        if (index >= size) {
+        if (size >= 0 && index >= size) {
             throw new ArrayIndexOutOfBoundsException(index);
         }
-        if (current == null || index - start >= pageSize || index < start) {
-            current = parameterJdbcTemplate.query(limitSqlAdapter.getLimitSql(sql, index, pageSize), args, mapper);
-            start = index;
+        if (!fetch(index)) {
+            throw new ArrayIndexOutOfBoundsException(index);
         }
         return current.get(index - start);
     }
 
     @Override
     public Iterator<E> iterator() {
+        if (size < 0) {
+            return new PageIterator();
+        }
         return new SafeIterator<E>(super.iterator());
     }
 
+    /**
+     * Make sure the current page contains the row at the given index.
+     *
+     * @return true if there is such a row
+     */
+    private boolean fetch(int index) {
+        if (current == null || index - start >= pageSize || index < start) {
+            current = parameterJdbcTemplate.query(limitSqlAdapter.getLimitSql(sql, index, pageSize), args, mapper);
+            start = index;
+        }
+        return index - start < current.size();
+    }
+
+    private int count() {
+        return parameterJdbcTemplate.queryForInt(getCountSql(sql), args);
+    }
+
     @Override
     public List<E> subList(int fromIndex, int toIndex) {
         if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
@@ -113,7 +144,48 @@ public class JdbcPagingList<E> extends AbstractList<E> {
 
     @Override
     public int size() {
-        return this.size;
+        if (size < 0) {
+            if (current == null) {
+                fetch(0);
+            }
+            // a page that is not full is the end of the results
+            if (current.size() < pageSize && (start == 0 || !current.isEmpty())) {
+                size = start + current.size();
+            }
+            else {
+                size = count();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Iterates over the rows a page at a time until it finds a page that is
+     * not full, so the total never has to be counted.
+     */
+    private class PageIterator implements Iterator<E> {
+
+        private int index = 0;
+
+        @Override
+        public boolean hasNext() {
+            return fetch(index);
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            E next = current.get(index - start);
+            index++;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported: readonly interator");
+        }
     }
 
     /**
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.JsonUtils.JsonUtilException;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.security.crypto.codec.Utf8;
+
+/**
+ * The position of the last row of a page in a keyset query: the value of the
+ * sort key and the id of the row, together with the sort they belong to so a
+ * cursor cannot be replayed against a different ordering.
+ */
+final class KeysetCursor {
+
+    private final String sortColumn;
+
+    private final boolean ascending;
+
+    private final Object value;
+
+    private final String id;
+
+    KeysetCursor(String sortColumn, boolean ascending, Object value, String id) {
+        this.sortColumn = sortColumn;
+        this.ascending = ascending;
+        this.value = value;
+        this.id = id;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    boolean matches(String sortColumn, boolean ascending) {
+        return this.sortColumn.equals(sortColumn) && this.ascending == ascending;
+    }
+
+    String encode() {
+        String type;
+        String encoded;
+        if (value == null) {
+            type = "0";
+            encoded = null;
+        } else if (value instanceof Date) {
+            Timestamp timestamp = value instanceof Timestamp ? (Timestamp) value : new Timestamp(
+                            ((Date) value).getTime());
+            type = "t";
+            encoded = timestamp.getTime() + ":" + timestamp.getNanos();
+        } else if (value instanceof Number) {
+            type = "n";
+            encoded = new BigDecimal(value.toString()).toPlainString();
+        } else if (value instanceof Boolean) {
+            type = "b";
+            encoded = value.toString();
+        } else {
+            type = "s";
+            encoded = String.valueOf(value);
+        }
+        List<Object> fields = Arrays.<Object> asList(sortColumn, ascending, type, encoded, id);
+        return Base64.encodeBase64URLSafeString(JsonUtils.writeValueAsBytes(fields));
+    }
+
+    static KeysetCursor decode(String cursor) {
+        List<Object> fields;
+        try {
+            fields = JsonUtils.readValue(Utf8.decode(Base64.decodeBase64(cursor)), new TypeReference<List<Object>>() {
+            });
+        } catch (JsonUtilException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        if (fields == null || fields.size() != 5) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        try {
+            String type = (String) fields.get(2);
+            String encoded = (String) fields.get(3);
+            Object value;
+            if ("0".equals(type)) {
+                value = null;
+            } else if ("t".equals(type)) {
+                String[] parts = encoded.split(":");
+                Timestamp timestamp = new Timestamp(Long.parseLong(parts[0]));
+                timestamp.setNanos(Integer.parseInt(parts[1]));
+                value = timestamp;
+            } else if ("n".equals(type)) {
+                value = new BigDecimal(encoded);
+            } else if ("b".equals(type)) {
+                value = Boolean.valueOf(encoded);
+            } else {
+                value = encoded;
+            }
+            return new KeysetCursor((String) fields.get(0), (Boolean) fields.get(1), value, (String) fields.get(4));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+}
@@ -16,8 +16,12 @@ package org.cloudfoundry.identity.uaa.rest.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.unboundid.scim.sdk.SCIMException;
@@ -29,13 +33,56 @@ import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.StringUtils;
 
+/**
+ * Converts SCIM filters to SQL where clauses. Filters that only differ in
+ * their quoted values have the same shape, and the SQL for a shape is cached
+ * after the first conversion, so repeated lookups (e.g. by user name) do not
+ * parse the filter again. The values are always passed as bind parameters.
+ */
 public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     private static Log logger = LogFactory.getLog(SimpleSearchQueryConverter.class);
+
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        }
+    };
+
+    private final RandomValueStringGenerator generator = new RandomValueStringGenerator();
+
     private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> emptyMap());
 
+    private int maxCachedFilters = 1000;
+
+    private final Map<String, CompiledFilter> compiledFilters = new LinkedHashMap<String, CompiledFilter>(16, 0.75f,
+                    true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledFilter> eldest) {
+            return size() > maxCachedFilters;
+        }
+    };
+
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
+        synchronized (compiledFilters) {
+            compiledFilters.clear();
+        }
+    }
+
+    /**
+     * @param maxCachedFilters the maximum number of filter shapes to keep the
+     *            SQL for (default 1000). Zero disables the cache.
+     */
+    public void setMaxCachedFilters(int maxCachedFilters) {
+        this.maxCachedFilters = maxCachedFilters;
+    }
+
+    public int getCachedFilterCount() {
+        synchronized (compiledFilters) {
+            return compiledFilters.size();
+        }
     }
 
     @Override
@@ -46,6 +93,32 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
     @Override
     public ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
         String paramPrefix = generateParameterPrefix(filter);
+        if (maxCachedFilters <= 0 || mapper != this.mapper || !StringUtils.hasText(filter)) {
+            return convert(filter, sortBy, ascending, mapper, paramPrefix);
+        }
+        FilterShape shape = FilterShape.of(filter, sortBy, ascending, this);
+        if (shape == null) {
+            return convert(filter, sortBy, ascending, mapper, paramPrefix);
+        }
+        CompiledFilter compiled;
+        synchronized (compiledFilters) {
+            compiled = compiledFilters.get(shape.key);
+        }
+        if (compiled != null) {
+            return compiled.bind(shape.values, paramPrefix);
+        }
+        ProcessedFilter pf = convert(filter, sortBy, ascending, mapper, paramPrefix);
+        compiled = CompiledFilter.compile(pf, shape.values);
+        if (compiled != null) {
+            synchronized (compiledFilters) {
+                compiledFilters.put(shape.key, compiled);
+            }
+        }
+        return pf;
+    }
+
+    private ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper,
+                    String paramPrefix) {
         Map<String, Object> values = new HashMap<String, Object>();
         String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix) : null;
         ProcessedFilter pf = new ProcessedFilter(where, values);
@@ -55,7 +128,7 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     protected String generateParameterPrefix(String filter) {
         while (true) {
-            String s = new RandomValueStringGenerator().generate().toLowerCase();
+            String s = generator.generate().toLowerCase();
             if (!filter.contains(s)) {
                 return "__"+s+"_";
             }
@@ -165,14 +238,162 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
     }
 
     protected Object getStringOrDate(String s) {
+        // only a value with all the literal characters of the format can be a
+        // timestamp, so don't bother trying to parse anything else
+        if (s.indexOf('T') < 0 || s.indexOf(':') < 0 || s.indexOf('Z') < 0) {
+            return s;
+        }
         try {
-            DateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            return TIMESTAMP_FORMAT.parse(s);
+            return TIMESTAMP_FORMAT.get().parse(s);
         } catch (ParseException x) {
             return s;
         }
     }
 
+    /**
+     * A filter with its quoted values taken out. The key identifies the SQL
+     * the filter converts to, so it includes the sort order and whether each
+     * value is a timestamp or a string.
+     */
+    private static final class FilterShape {
 
+        private final String key;
 
+        private final List<String> values;
+
+        private FilterShape(String key, List<String> values) {
+            this.key = key;
+            this.values = values;
+        }
+
+        /**
+         * @return the shape of the filter, or null if it has values that are
+         *         not simple to extract (escaped or unterminated quotes)
+         */
+        private static FilterShape of(String filter, String sortBy, boolean ascending,
+                        SimpleSearchQueryConverter converter) {
+            StringBuilder key = new StringBuilder(filter.length());
+            StringBuilder kinds = new StringBuilder();
+            List<String> values = new ArrayList<String>();
+            int index = 0;
+            while (true) {
+                int open = filter.indexOf('"', index);
+                if (open < 0) {
+                    key.append(filter, index, filter.length());
+                    break;
+                }
+                int close = filter.indexOf('"', open + 1);
+                if (close < 0) {
+                    return null;
+                }
+                String value = filter.substring(open + 1, close);
+                if (value.indexOf('\\') >= 0) {
+                    return null;
+                }
+                key.append(filter, index, open).append("\"\"");
+                kinds.append(converter.getStringOrDate(value) instanceof String ? 's' : 'd');
+                values.add(value);
+                index = close + 1;
+            }
+            key.append('|').append(kinds).append('|').append(sortBy).append('|').append(ascending);
+            return new FilterShape(key.toString(), values);
+        }
+    }
+
+    /**
+     * The SQL for a filter shape, with a recipe for each bind parameter:
+     * either a constant (unquoted values are part of the shape) or the quoted
+     * value at a given position, possibly wrapped in wildcards.
+     */
+    private static final class CompiledFilter {
+
+        private final String sql;
+
+        private final String paramPrefix;
+
+        private final Object[] constants;
+
+        private final int[] positions;
+
+        private final String[] prefixes;
+
+        private final String[] suffixes;
+
+        private CompiledFilter(String sql, String paramPrefix, int size) {
+            this.sql = sql;
+            this.paramPrefix = paramPrefix;
+            this.constants = new Object[size];
+            this.positions = new int[size];
+            this.prefixes = new String[size];
+            this.suffixes = new String[size];
+        }
+
+        /**
+         * @return the compiled filter, or null if the parameters cannot be
+         *         matched unambiguously to the quoted values
+         */
+        private static CompiledFilter compile(ProcessedFilter pf, List<String> values) {
+            Map<String, Object> params = pf.getParams();
+            CompiledFilter compiled = new CompiledFilter(pf.getSql(), pf.getParamPrefix(), params.size());
+            int position = 0;
+            for (int i = 0; i < params.size(); i++) {
+                String name = pf.getParamPrefix() + i;
+                if (!params.containsKey(name)) {
+                    return null;
+                }
+                Object param = params.get(name);
+                compiled.positions[i] = -1;
+                if (param instanceof String || param instanceof Date) {
+                    if (position >= values.size()) {
+                        return null;
+                    }
+                    String value = values.get(position);
+                    compiled.positions[i] = position++;
+                    if (param instanceof String && !compiled.wrap(i, (String) param, value)) {
+                        return null;
+                    }
+                } else {
+                    compiled.constants[i] = param;
+                }
+            }
+            return position == values.size() ? compiled : null;
+        }
+
+        private boolean wrap(int i, String param, String value) {
+            int matches = 0;
+            for (String prefix : new String[] { "", "%" }) {
+                for (String suffix : new String[] { "", "%" }) {
+                    if (param.equals(prefix + value + suffix)) {
+                        prefixes[i] = prefix;
+                        suffixes[i] = suffix;
+                        matches++;
+                    }
+                }
+            }
+            return matches == 1;
+        }
+
+        private ProcessedFilter bind(List<String> values, String paramPrefix) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            for (int i = 0; i < positions.length; i++) {
+                Object param = constants[i];
+                if (positions[i] >= 0) {
+                    String value = values.get(positions[i]);
+                    if (prefixes[i] == null) {
+                        try {
+                            param = TIMESTAMP_FORMAT.get().parse(value);
+                        } catch (ParseException e) {
+                            throw new IllegalStateException("Timestamp cannot be parsed: " + value, e);
+                        }
+                    } else {
+                        param = prefixes[i] + value + suffixes[i];
+                    }
+                }
+                params.put(paramPrefix + i, param);
+            }
+            ProcessedFilter pf = new ProcessedFilter(sql.replace(this.paramPrefix, paramPrefix), params);
+            pf.setParamPrefix(paramPrefix);
+            return pf;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserPasswordChangedEvent;
+import org.cloudfoundry.identity.uaa.util.LoadingCache;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * A {@link UaaUserDatabase} that remembers the users it has loaded, so that a
+ * token grant, which looks up the same user several times, only reads it
+ * once.
+ * <p>
+ * Users are always remembered for the rest of the current HTTP request.
+ * Optionally they are also shared between requests for a short time (see
+ * {@link #setMaxAgeSeconds(int)}). A user is forgotten when it is modified,
+ * deleted or verified, or changes its password or email, and all users are
+ * forgotten when a group changes (because that can change their
+ * authorities).
+ */
+@ManagedResource
+public class CachingUaaUserDatabase implements UaaUserDatabase, ApplicationListener<AbstractUaaEvent> {
+
+    private static final String REQUEST_ATTRIBUTE = CachingUaaUserDatabase.class.getName() + ".USERS";
+
+    private final UaaUserDatabase delegate;
+
+    // also count the users remembered for the current request, which the
+    // shared cache doesn't know about
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final LoadingCache<String, UaaUser> cache = new LoadingCache<String, UaaUser>(
+                    new LoadingCache.Loader<String, UaaUser>() {
+                        @Override
+                        public UaaUser load(String id) {
+                            missCount.incrementAndGet();
+                            return delegate.retrieveUserById(id);
+                        }
+
+                        @Override
+                        public boolean isCurrent(String id, UaaUser user) {
+                            return false;
+                        }
+                    });
+
+    public CachingUaaUserDatabase(UaaUserDatabase delegate) {
+        Assert.notNull(delegate, "delegate must not be null");
+        this.delegate = delegate;
+        cache.setMaxEntries(10000);
+    }
+
+    /**
+     * @param maxAgeSeconds the time a user is shared between requests for
+     *            (default 0, which only remembers users for the current
+     *            request). Keep it short: a user changed on another server
+     *            is only seen here once the entry expires.
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        cache.setRefreshIntervalMillis(maxAgeSeconds * 1000l);
+    }
+
+    /**
+     * @param maxEntries the maximum number of users shared between requests
+     *            (default 10000)
+     */
+    public void setMaxEntries(int maxEntries) {
+        cache.setMaxEntries(maxEntries);
+    }
+
+    @Override
+    public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
+        String key = "name:" + IdentityZoneHolder.get().getId() + ":" + origin + ":" + username.toLowerCase(Locale.US);
+        Map<String, UaaUser> requestUsers = getRequestUsers();
+        UaaUser user = requestUsers == null ? null : requestUsers.get(key);
+        if (user != null) {
+            hitCount.incrementAndGet();
+            return user;
+        }
+        missCount.incrementAndGet();
+        user = delegate.retrieveUserByName(username, origin);
+        if (requestUsers != null) {
+            requestUsers.put(key, user);
+            requestUsers.put(user.getId(), user);
+        }
+        return user;
+    }
+
+    @Override
+    public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+        Map<String, UaaUser> requestUsers = getRequestUsers();
+        UaaUser user = requestUsers == null ? null : requestUsers.get(id);
+        if (user != null) {
+            hitCount.incrementAndGet();
+            return user;
+        }
+        user = cache.get(id);
+        if (requestUsers != null) {
+            requestUsers.put(id, user);
+        }
+        return user;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, UaaUser> getRequestUsers() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, UaaUser> users = (Map<String, UaaUser>) attributes.getAttribute(REQUEST_ATTRIBUTE,
+                        RequestAttributes.SCOPE_REQUEST);
+        if (users == null) {
+            users = new HashMap<String, UaaUser>();
+            attributes.setAttribute(REQUEST_ATTRIBUTE, users, RequestAttributes.SCOPE_REQUEST);
+        }
+        return users;
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof UserModifiedEvent) {
+            evict(((UserModifiedEvent) event).getUserId());
+        } else if (event instanceof GroupModifiedEvent) {
+            clear();
+        } else if (event instanceof UserPasswordChangedEvent) {
+            evict(((UserPasswordChangedEvent) event).getUserId());
+        }
+    }
+
+    private void evict(String id) {
+        if (id == null) {
+            return;
+        }
+        cache.remove(id);
+        Map<String, UaaUser> requestUsers = getRequestUsers();
+        if (requestUsers != null) {
+            for (Iterator<UaaUser> users = requestUsers.values().iterator(); users.hasNext();) {
+                if (id.equals(users.next().getId())) {
+                    users.remove();
+                }
+            }
+        }
+    }
+
+    @ManagedOperation(description = "Remove all entries from the user cache")
+    public void clear() {
+        cache.clear();
+        Map<String, UaaUser> requestUsers = getRequestUsers();
+        if (requestUsers != null) {
+            requestUsers.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "User Cache Size")
+    public int getSize() {
+        return cache.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get() + cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
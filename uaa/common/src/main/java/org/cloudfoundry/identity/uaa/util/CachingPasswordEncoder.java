@@ -14,12 +14,17 @@ package org.cloudfoundry.identity.uaa.util;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.codec.Hex;
@@ -32,19 +37,43 @@ import org.springframework.security.oauth2.common.util.RandomValueStringGenerato
 /**
  * Wrapper around a slow password encoder that does a fast translation in memory only
  * This uses a hash to as a key to store a list of
+ * <p>
+ * The cache is split into segments, each a small LRU map with its own lock,
+ * so that concurrent lookups rarely wait for each other. When a segment is
+ * full its least recently used key is evicted, and every key expires
+ * {@link #setExpirySeconds(int) expirySeconds} after it was added, so the
+ * digests of credentials don't stay in memory forever. Each thread has its
+ * own {@link MessageDigest}.
  */
+@ManagedResource
 public class CachingPasswordEncoder implements PasswordEncoder {
 
-    private final MessageDigest messageDigest;
+    private static final int SEGMENTS = 16;
+
+    private final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     private final byte[] secret;
     private final byte[] salt;
     private final BytesKeyGenerator saltGenerator;
     private final int iterations;
 
-    private int maxKeys = 1000;
+    private volatile int maxKeys = 1000;
     private int maxEncodedPasswords = 5;
+    private long expiryMillis = 3600 * 1000;
     private boolean enabled = true;
 
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -53,16 +82,20 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.enabled = enabled;
     }
 
-    private final ConcurrentHashMap<CharSequence, Set<String>> cache = new ConcurrentHashMap<>();
+    private final Segment[] segments = new Segment[SEGMENTS];
 
     private BCryptPasswordEncoder passwordEncoder;
 
     public CachingPasswordEncoder() throws NoSuchAlgorithmException {
-        messageDigest = MessageDigest.getInstance("SHA-256");
+        // fail fast if the digest algorithm isn't available
+        MessageDigest.getInstance("SHA-256");
         this.secret = Utf8.encode(new RandomValueStringGenerator().generate());
         this.saltGenerator = KeyGenerators.secureRandom();
         this.salt = saltGenerator.generateKey();
         iterations = 25;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
     }
 
     public PasswordEncoder getPasswordEncoder() {
@@ -89,41 +122,23 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         }
     }
 
-    private Set<String> getOrCreateHashList(String cacheKey) {
-        cache.putIfAbsent(cacheKey, Collections.synchronizedSet(new LinkedHashSet<String>()));
-        if (cache.size()>getMaxKeys()) {
-            //this should not happen if properly tuned.
-            cache.clear();
-        }
-        Set<String> result = cache.get(cacheKey);
-        return result;
+    private Segment segmentFor(String cacheKey) {
+        return segments[(cacheKey.hashCode() & 0x7fffffff) % segments.length];
     }
 
     private boolean internalMatches(String cacheKey, CharSequence rawPassword, String encodedPassword) {
-        Set<String> cacheValue = cache.get(cacheKey);
-        boolean result = false;
-        for (String encoded : cacheValue!=null ? cacheValue : Collections.<String>emptyList()) {
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                break;
-            }
+        Segment segment = segmentFor(cacheKey);
+        if (segment.contains(cacheKey, encodedPassword)) {
+            hitCount.incrementAndGet();
+            return true;
         }
-        if (!result) {
-            String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                cacheValue = getOrCreateHashList(cacheKey);
-                if (cacheValue!=null) {
-                    cacheValue.add(encoded);
-                    //this list should never grow very long.
-                    //Only if you store multiple versions of the same password more than once
-                    if (cacheValue.size() > getMaxEncodedPasswords()) {
-                        cacheValue.clear();
-                    }
-                }
-            }
+        missCount.incrementAndGet();
+        String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
+        if (hashesEquals(encoded, encodedPassword)) {
+            segment.add(cacheKey, encoded);
+            return true;
         }
-        return result;
+        return false;
     }
 
 
@@ -138,12 +153,11 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private byte[] digest(byte[] value) {
-        synchronized (messageDigest) {
-            for (int i = 0; i < iterations; i++) {
-                value = messageDigest.digest(value);
-            }
-            return value;
+        MessageDigest digest = messageDigest.get();
+        for (int i = 0; i < iterations; i++) {
+            value = digest.digest(value);
         }
+        return value;
     }
 
     private boolean hashesEquals(String a, String b) {
@@ -165,6 +179,10 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         return maxKeys;
     }
 
+    /**
+     * @param maxKeys the maximum number of passwords remembered (default
+     *            1000). Each segment holds an equal share.
+     */
     public void setMaxKeys(int maxKeys) {
         this.maxKeys = maxKeys;
     }
@@ -173,11 +191,105 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         return maxEncodedPasswords;
     }
 
+    /**
+     * @param maxEncodedPasswords the maximum number of encodings remembered
+     *            for one password (default 5). The oldest is forgotten first.
+     */
     public void setMaxEncodedPasswords(int maxEncodedPasswords) {
         this.maxEncodedPasswords = maxEncodedPasswords;
     }
 
+    /**
+     * @param expirySeconds the time a password is remembered for after it is
+     *            first matched (default 3600)
+     */
+    public void setExpirySeconds(int expirySeconds) {
+        this.expiryMillis = expirySeconds * 1000l;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Cache Size")
     public int getNumberOfKeys() {
-        return cache.size();
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Eviction Count")
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private static final class CachedPassword {
+
+        private final Set<String> encoded = new LinkedHashSet<String>();
+
+        private final long expiresAt;
+
+        private CachedPassword(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class Segment {
+
+        private final Map<String, CachedPassword> entries = new LinkedHashMap<String, CachedPassword>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPassword> eldest) {
+                if (size() > Math.max(1, (maxKeys + SEGMENTS - 1) / SEGMENTS)) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private synchronized boolean contains(String cacheKey, String encodedPassword) {
+            CachedPassword cached = entries.get(cacheKey);
+            if (cached == null) {
+                return false;
+            }
+            if (cached.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(cacheKey);
+                evictionCount.incrementAndGet();
+                return false;
+            }
+            for (String encoded : cached.encoded) {
+                if (hashesEquals(encoded, encodedPassword)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void add(String cacheKey, String encoded) {
+            CachedPassword cached = entries.get(cacheKey);
+            if (cached == null) {
+                cached = new CachedPassword(System.currentTimeMillis() + expiryMillis);
+                entries.put(cacheKey, cached);
+            }
+            cached.encoded.add(encoded);
+            //this list should never grow very long.
+            //Only if you store multiple versions of the same password more than once
+            for (Iterator<String> iterator = cached.encoded.iterator(); cached.encoded.size() > maxEncodedPasswords;) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
     }
 }
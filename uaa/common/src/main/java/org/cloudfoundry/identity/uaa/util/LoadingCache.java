@@ -0,0 +1,208 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-memory cache of values that are loaded on demand, usually from
+ * the database, and that are removed when they are changed on this server.
+ * <p>
+ * When it is full the least recently used entry is evicted. An entry is
+ * trusted for the refresh interval, after which the {@link Loader} is asked
+ * whether it is still current, and it is loaded again if not. Removing
+ * entries starts a new generation, and a value is only added if no entries
+ * were removed while it was loading, so that a load that overlaps with a
+ * change doesn't put the old value back.
+ * <p>
+ * Values are shared by everyone who gets them from the cache, so if they are
+ * mutable the caller should hand out copies.
+ */
+public class LoadingCache<K, V> {
+
+    public interface Loader<K, V> {
+
+        V load(K key);
+
+        /**
+         * @return true if a value loaded earlier can still be used, false to
+         *         load it again
+         */
+        boolean isCurrent(K key, V value);
+    }
+
+    private final Loader<K, V> loader;
+
+    private volatile long refreshIntervalMillis = 0;
+
+    private volatile int maxEntries = 1000;
+
+    private long generation = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final Map<K, CachedValue<V>> entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+            if (size() > maxEntries) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public LoadingCache(Loader<K, V> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @param refreshIntervalMillis the time an entry is trusted before it is
+     *            checked (default 0, which disables the cache)
+     */
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries (default 1000)
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return refreshIntervalMillis > 0 && maxEntries > 0;
+    }
+
+    /**
+     * @return the value for the key, from the cache if possible, otherwise
+     *         from the loader
+     */
+    public V get(K key) {
+        if (!isEnabled()) {
+            return loader.load(key);
+        }
+        CachedValue<V> entry;
+        long current;
+        synchronized (entries) {
+            current = generation;
+            entry = entries.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now - entry.checkedAt < refreshIntervalMillis) {
+                hitCount.incrementAndGet();
+                return entry.value;
+            }
+            if (loader.isCurrent(key, entry.value)) {
+                entry.checkedAt = now;
+                hitCount.incrementAndGet();
+                return entry.value;
+            }
+            refreshCount.incrementAndGet();
+            synchronized (entries) {
+                if (entries.get(key) == entry) {
+                    entries.remove(key);
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+        missCount.incrementAndGet();
+        V value = loader.load(key);
+        synchronized (entries) {
+            if (current == generation) {
+                entries.put(key, new CachedValue<V>(value, now));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached value for the key, without loading or checking it,
+     *         or null if there is none
+     */
+    public V getIfPresent(K key) {
+        synchronized (entries) {
+            CachedValue<V> entry = entries.get(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (entries) {
+            generation++;
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of values that were loaded, including the ones in
+     *         {@link #getRefreshCount()}
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of entries that were found to be no longer current
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return the number of entries that were dropped because the cache was
+     *         full or they were no longer current
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private static final class CachedValue<V> {
+
+        private final V value;
+
+        private volatile long checkedAt;
+
+        private CachedValue(V value, long checkedAt) {
+            this.value = value;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.AuthenticationOverloadedException;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * Checks passwords on a small dedicated thread pool, so that a burst of
+ * logins can only keep as many CPUs busy with a slow password hash (e.g.
+ * BCrypt) as there are threads in the pool, and the server stays responsive
+ * for other requests.
+ * <p>
+ * Requests that would have to wait behind more than
+ * {@link #setMaxPending(int) maxPending} others are rejected straight away
+ * with an {@link AuthenticationOverloadedException}, and so are requests from
+ * an identity zone that already has {@link #setMaxPendingPerZone(int)
+ * maxPendingPerZone} waiting, so that one busy zone can't lock out the
+ * others. Encoding is left on the calling thread: it is only used when
+ * passwords are set, and should not be rejected.
+ */
+@ManagedResource
+public class PooledPasswordEncoder implements PasswordEncoder, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final PasswordEncoder delegate;
+
+    private final ExecutorService executor;
+
+    private int maxPending = 100;
+
+    private int maxPendingPerZone = 50;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> pendingPerZone = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong matchCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong hashNanos = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private volatile long maxHashNanos = 0;
+
+    private volatile long maxWaitNanos = 0;
+
+    public PooledPasswordEncoder(PasswordEncoder delegate) {
+        this(delegate, 0);
+    }
+
+    /**
+     * @param delegate the encoder that does the work
+     * @param poolSize the number of passwords checked at the same time (0
+     *            for one per processor)
+     */
+    public PooledPasswordEncoder(PasswordEncoder delegate, int poolSize) {
+        Assert.notNull(delegate, "delegate must not be null");
+        Assert.isTrue(poolSize >= 0, "poolSize must not be negative");
+        this.delegate = delegate;
+        this.executor = Executors.newFixedThreadPool(poolSize > 0 ? poolSize : Runtime.getRuntime()
+                        .availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "password-hash-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param maxPending the maximum number of password checks waiting for or
+     *            using a thread before new ones are rejected (default 100)
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @param maxPendingPerZone the maximum number of those from one identity
+     *            zone (default 50)
+     */
+    public void setMaxPendingPerZone(int maxPendingPerZone) {
+        this.maxPendingPerZone = maxPendingPerZone;
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return delegate.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(final CharSequence rawPassword, final String encodedPassword) {
+        String zoneId = IdentityZoneHolder.get().getId();
+        AtomicInteger zonePending = admit(zoneId);
+        try {
+            final long submitted = System.nanoTime();
+            Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    long started = System.nanoTime();
+                    try {
+                        return delegate.matches(rawPassword, encodedPassword);
+                    } finally {
+                        record(started - submitted, System.nanoTime() - started);
+                    }
+                }
+            });
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException("Interrupted while checking password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AuthenticationServiceException("Unable to check password", e.getCause());
+        } finally {
+            zonePending.decrementAndGet();
+            pending.decrementAndGet();
+        }
+    }
+
+    private AtomicInteger admit(String zoneId) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            throw reject("Too many logins in progress");
+        }
+        AtomicInteger zonePending = pendingPerZone.get(zoneId);
+        if (zonePending == null) {
+            AtomicInteger existing = pendingPerZone.putIfAbsent(zoneId, zonePending = new AtomicInteger());
+            if (existing != null) {
+                zonePending = existing;
+            }
+        }
+        if (zonePending.incrementAndGet() > maxPendingPerZone) {
+            zonePending.decrementAndGet();
+            pending.decrementAndGet();
+            throw reject("Too many logins in progress for identity zone " + zoneId);
+        }
+        return zonePending;
+    }
+
+    private AuthenticationOverloadedException reject(String message) {
+        rejectedCount.incrementAndGet();
+        logger.debug(message + ", rejecting password check");
+        return new AuthenticationOverloadedException(message);
+    }
+
+    private void record(long wait, long hash) {
+        matchCount.incrementAndGet();
+        waitNanos.addAndGet(wait);
+        hashNanos.addAndGet(hash);
+        if (wait > maxWaitNanos) {
+            maxWaitNanos = wait;
+        }
+        if (hash > maxHashNanos) {
+            maxHashNanos = hash;
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Checks Pending")
+    public int getPending() {
+        return pending.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Check Count")
+    public long getMatchCount() {
+        return matchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Checks Rejected")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Hash Average Latency (ms)")
+    public long getAverageHashMillis() {
+        long count = matchCount.get();
+        return count == 0 ? 0 : hashNanos.get() / count / 1000000;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Hash Maximum Latency (ms)")
+    public long getMaxHashMillis() {
+        return maxHashNanos / 1000000;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Check Average Queue Wait (ms)")
+    public long getAverageWaitMillis() {
+        long count = matchCount.get();
+        return count == 0 ? 0 : waitNanos.get() / count / 1000000;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Check Maximum Queue Wait (ms)")
+    public long getMaxWaitMillis() {
+        return maxWaitNanos / 1000000;
+    }
+}
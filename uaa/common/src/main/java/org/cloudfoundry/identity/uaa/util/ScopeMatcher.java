@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches scopes against a set of scope patterns, where a <code>*</code>
+ * stands for one or more characters other than a <code>.</code> (the same
+ * rule as {@link UaaStringUtils#constructSimpleWildcardPattern(String)}).
+ * <p>
+ * The patterns are stored in a tree with one level per <code>.</code>
+ * separated segment, so a match only looks at the patterns that share the
+ * segments seen so far, instead of trying every pattern in turn. Matchers
+ * are immutable, and the ones for the scopes and authorities of clients are
+ * cached (see {@link #forScopes(Collection)}), so they are built once per
+ * client definition.
+ */
+public final class ScopeMatcher {
+
+    private static final int MAX_CACHED = 1000;
+
+    private static final Map<Set<String>, ScopeMatcher> cache = new LinkedHashMap<Set<String>, ScopeMatcher>(16,
+                    0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<String>, ScopeMatcher> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private final Node root = new Node();
+
+    private ScopeMatcher(Collection<String> patterns) {
+        for (String pattern : patterns) {
+            Node node = root;
+            for (String segment : split(pattern)) {
+                node = node.child(segment);
+            }
+            node.terminal = true;
+        }
+    }
+
+    /**
+     * Build a matcher for a set of patterns that is only used once, e.g. the
+     * scopes of a single request.
+     */
+    public static ScopeMatcher compile(Collection<String> patterns) {
+        return new ScopeMatcher(patterns == null ? Collections.<String> emptySet() : patterns);
+    }
+
+    /**
+     * Return the matcher for a set of patterns that is used again and again,
+     * e.g. the scopes of a client, building it the first time.
+     */
+    public static ScopeMatcher forScopes(Collection<String> patterns) {
+        Set<String> key = patterns == null ? Collections.<String> emptySet() : new HashSet<String>(patterns);
+        synchronized (cache) {
+            ScopeMatcher matcher = cache.get(key);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        ScopeMatcher matcher = new ScopeMatcher(key);
+        synchronized (cache) {
+            cache.put(key, matcher);
+        }
+        return matcher;
+    }
+
+    public boolean matches(String scope) {
+        if (scope == null) {
+            return false;
+        }
+        return root.matches(split(scope), 0);
+    }
+
+    private static String[] split(String scope) {
+        // like String.split(), but keeping empty segments and without a regex
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        for (int dot = scope.indexOf('.'); dot >= 0; dot = scope.indexOf('.', start)) {
+            segments.add(scope.substring(start, dot));
+            start = dot + 1;
+        }
+        segments.add(scope.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> literals = new HashMap<String, Node>();
+
+        private final List<Wildcard> wildcards = new ArrayList<Wildcard>();
+
+        private boolean terminal = false;
+
+        private Node child(String segment) {
+            if (segment.indexOf('*') < 0) {
+                Node child = literals.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    literals.put(segment, child);
+                }
+                return child;
+            }
+            for (Wildcard wildcard : wildcards) {
+                if (wildcard.segment.equals(segment)) {
+                    return wildcard.node;
+                }
+            }
+            Wildcard wildcard = new Wildcard(segment);
+            wildcards.add(wildcard);
+            return wildcard.node;
+        }
+
+        private boolean matches(String[] segments, int index) {
+            if (index == segments.length) {
+                return terminal;
+            }
+            String segment = segments[index];
+            Node literal = literals.get(segment);
+            if (literal != null && literal.matches(segments, index + 1)) {
+                return true;
+            }
+            for (Wildcard wildcard : wildcards) {
+                if (wildcard.matches(segment) && wildcard.node.matches(segments, index + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A segment containing <code>*</code>, each of which matches one or more
+     * characters.
+     */
+    private static final class Wildcard {
+
+        private final String segment;
+
+        private final String[] parts;
+
+        private final Node node = new Node();
+
+        private Wildcard(String segment) {
+            this.segment = segment;
+            List<String> parts = new ArrayList<String>();
+            int start = 0;
+            for (int star = segment.indexOf('*'); star >= 0; star = segment.indexOf('*', start)) {
+                parts.add(segment.substring(start, star));
+                start = star + 1;
+            }
+            parts.add(segment.substring(start));
+            this.parts = parts.toArray(new String[parts.size()]);
+        }
+
+        private boolean matches(String value) {
+            return matches(value, 0, 0);
+        }
+
+        private boolean matches(String value, int part, int position) {
+            if (!value.startsWith(parts[part], position)) {
+                return false;
+            }
+            position += parts[part].length();
+            if (part == parts.length - 1) {
+                return position == value.length();
+            }
+            // the star must match at least one character
+            for (int next = position + 1; next <= value.length(); next++) {
+                if (matches(value, part + 1, next)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -17,7 +17,6 @@ package org.cloudfoundry.identity.uaa.util;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 public class UaaTokenUtils {
 
@@ -27,10 +26,10 @@ public class UaaTokenUtils {
 
     public Set<String> retainAutoApprovedScopes(Collection<String> requestedScopes, Set<String> autoApprovedScopes) {
         HashSet<String> result = new HashSet<>();
-        Set<Pattern> autoApprovedScopePatterns = UaaStringUtils.constructWildcards(autoApprovedScopes);
+        ScopeMatcher autoApprovedScopeMatcher = ScopeMatcher.forScopes(autoApprovedScopes);
         // Don't want to approve more than what's requested
         for (String scope : requestedScopes) {
-            if (UaaStringUtils.matches(autoApprovedScopePatterns, scope)) {
+            if (autoApprovedScopeMatcher.matches(scope)) {
                 result.add(scope);
             }
         }
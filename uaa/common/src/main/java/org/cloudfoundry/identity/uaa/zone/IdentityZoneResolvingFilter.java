@@ -12,6 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import org.cloudfoundry.identity.uaa.util.LoadingCache;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.web.filter.OncePerRequestFilter;
 
@@ -28,17 +31,35 @@ import java.util.Set;
  * This filter ensures that all requests are targeting a specific identity zone
  * by hostname. If the hostname doesn't match an identity zone, a 404 error is
  * sent.
+ * <p>
+ * The zone found for a subdomain, or the fact that there is none, can be
+ * cached for a short time (see {@link #setCacheMaxAgeSeconds(int)}). The
+ * cache is cleared whenever a zone is created or modified on this server.
  * 
  * @author wtran@pivotal.io
  * @author rszumlakowski@pivotal.io
  *
  */
-public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
+public class IdentityZoneResolvingFilter extends OncePerRequestFilter implements
+        ApplicationListener<IdentityZoneModifiedEvent> {
 
     private IdentityZoneProvisioning dao;
 
     private Set<String> internalHostnames = new HashSet<>();
 
+    private final LoadingCache<String, IdentityZone> cache = new LoadingCache<String, IdentityZone>(
+                    new LoadingCache.Loader<String, IdentityZone>() {
+                        @Override
+                        public IdentityZone load(String subdomain) {
+                            return lookup(subdomain);
+                        }
+
+                        @Override
+                        public boolean isCurrent(String subdomain, IdentityZone zone) {
+                            return false;
+                        }
+                    });
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
@@ -46,12 +67,7 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         String hostname = request.getServerName();
         String subdomain = getSubdomain(hostname);
         if (subdomain != null) {
-            try {
-                identityZone = dao.retrieveBySubdomain(subdomain);
-            } catch (EmptyResultDataAccessException ex) {
-            } catch (Exception ex) {
-                throw ex;
-            }
+            identityZone = cache.get(subdomain);
         }
         if (identityZone == null) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Cannot find identity zone for subdomain " + subdomain);
@@ -65,18 +81,50 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         }
     }
 
+    private IdentityZone lookup(String subdomain) {
+        try {
+            return dao.retrieveBySubdomain(subdomain);
+        } catch (EmptyResultDataAccessException ex) {
+            return null;
+        }
+    }
+
     private String getSubdomain(String hostname) {
         if (internalHostnames.contains(hostname)) {
             return "";
         }
-        for (String internalHostname : internalHostnames) {
-            if (hostname.endsWith("." + internalHostname)) {
-                return hostname.substring(0, hostname.length() - internalHostname.length() - 1);
+        // try the longest suffix first, so a subdomain is as short as possible
+        for (int dot = hostname.indexOf('.'); dot >= 0; dot = hostname.indexOf('.', dot + 1)) {
+            if (internalHostnames.contains(hostname.substring(dot + 1))) {
+                return hostname.substring(0, dot);
             }
         }
         return null;
     }
 
+    @Override
+    public void onApplicationEvent(IdentityZoneModifiedEvent event) {
+        // a zone's subdomain can change, so it is simplest to forget them all
+        cache.clear();
+    }
+
+    /**
+     * @param cacheMaxAgeSeconds the time a subdomain lookup is cached for,
+     *            whether or not it found a zone (default 0, which disables
+     *            the cache)
+     */
+    public void setCacheMaxAgeSeconds(int cacheMaxAgeSeconds) {
+        cache.setRefreshIntervalMillis(cacheMaxAgeSeconds * 1000l);
+    }
+
+    /**
+     * @param cacheMaxEntries the maximum number of subdomains to cache
+     *            (default 1000)
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        cache.setMaxEntries(cacheMaxEntries);
+    }
+
     public void setIdentityZoneProvisioning(IdentityZoneProvisioning dao) {
         this.dao = dao;
     }
@@ -12,11 +12,17 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import org.cloudfoundry.identity.uaa.util.LoadingCache;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -24,10 +30,22 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+/**
+ * Identity providers can optionally be cached per identity zone (see
+ * {@link #setCacheRefreshIntervalSeconds(int)}), so that looking one up by
+ * origin, which happens on every login and authorization request, doesn't
+ * need a query. Changes made on other servers are noticed by the number of
+ * providers in the zone, the sum of their versions and their latest
+ * modification time.
+ */
+@ManagedResource
 public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning {
 
     public static final String ID_PROVIDER_FIELDS = "id,version,created,lastModified,name,origin_key,type,config,identity_zone_id,active";
@@ -46,15 +64,49 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     public static final String IDENTITY_PROVIDER_BY_ORIGIN_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where origin_key=? and identity_zone_id=? ";
 
+    public static final String IDENTITY_PROVIDERS_STATE_QUERY = "select count(*),sum(version),max(lastModified) from identity_provider where identity_zone_id=?";
+
     protected final JdbcTemplate jdbcTemplate;
 
     private final RowMapper<IdentityProvider> mapper = new IdentityProviderRowMapper();
 
+    private final LoadingCache<String, CachedZone> cache = new LoadingCache<String, CachedZone>(
+                    new LoadingCache.Loader<String, CachedZone>() {
+                        @Override
+                        public CachedZone load(String zoneId) {
+                            return new CachedZone(jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, mapper, zoneId));
+                        }
+
+                        @Override
+                        public boolean isCurrent(String zoneId, CachedZone zone) {
+                            long[] state = queryState(zoneId);
+                            return state[0] == zone.byOrigin.size() && state[1] == zone.versions
+                                            && state[2] == zone.lastModified;
+                        }
+                    });
+
     public JdbcIdentityProviderProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    /**
+     * @param cacheRefreshIntervalSeconds the time a cached zone is trusted
+     *            before it is checked for changes (default 0, which disables
+     *            the cache)
+     */
+    public void setCacheRefreshIntervalSeconds(int cacheRefreshIntervalSeconds) {
+        cache.setRefreshIntervalMillis(cacheRefreshIntervalSeconds * 1000l);
+    }
+
+    /**
+     * @param cacheMaxZones the maximum number of identity zones to cache the
+     *            providers of (default 1000)
+     */
+    public void setCacheMaxZones(int cacheMaxZones) {
+        cache.setMaxEntries(cacheMaxZones);
+    }
+
     @Override
     public IdentityProvider retrieve(String id) {
         IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ID_QUERY, mapper, id);
@@ -63,22 +115,96 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     @Override
     public List<IdentityProvider> retrieveAll(String zoneId) {
-        return jdbcTemplate.query(IDENTITY_ACTIVE_PROVIDERS_QUERY, mapper, zoneId);
+        CachedZone zone = getCachedZone(zoneId);
+        if (zone == null) {
+            return jdbcTemplate.query(IDENTITY_ACTIVE_PROVIDERS_QUERY, mapper, zoneId);
+        }
+        return zone.providers(true);
     }
 
     @Override
     public List<IdentityProvider> retrieveAll(boolean activeOnly, String zoneId) {
         if (activeOnly) {
             return retrieveAll(zoneId);
-        } else {
+        }
+        CachedZone zone = getCachedZone(zoneId);
+        if (zone == null) {
             return jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, mapper, zoneId);
         }
+        return zone.providers(false);
     }
 
     @Override
     public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
-        IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
-        return identityProvider;
+        CachedZone zone = getCachedZone(zoneId);
+        if (zone == null) {
+            IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
+            return identityProvider;
+        }
+        IdentityProvider identityProvider = zone.byOrigin.get(origin);
+        if (identityProvider == null) {
+            // what queryForObject() would have thrown
+            throw new EmptyResultDataAccessException(1);
+        }
+        return copy(identityProvider);
+    }
+
+    /**
+     * @return the cached providers of a zone, loading them if necessary, or
+     *         null if the cache is disabled
+     */
+    private CachedZone getCachedZone(String zoneId) {
+        return cache.isEnabled() ? cache.get(zoneId) : null;
+    }
+
+    private long[] queryState(String zoneId) {
+        return jdbcTemplate.queryForObject(IDENTITY_PROVIDERS_STATE_QUERY, new RowMapper<long[]>() {
+            @Override
+            public long[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                Timestamp lastModified = rs.getTimestamp(3);
+                return new long[] {rs.getLong(1), rs.getLong(2), lastModified == null ? 0 : lastModified.getTime()};
+            }
+        }, zoneId);
+    }
+
+    @ManagedOperation(description = "Remove all entries from the identity provider cache")
+    public void clearCache() {
+        cache.clear();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Identity Provider Cache Zone Count")
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Hit Count")
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Miss Count")
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Refresh Count")
+    public long getCacheRefreshCount() {
+        return cache.getRefreshCount();
+    }
+
+    private static IdentityProvider copy(IdentityProvider provider) {
+        IdentityProvider copy = new IdentityProvider();
+        copy.setId(provider.getId());
+        copy.setVersion(provider.getVersion());
+        copy.setCreated(provider.getCreated());
+        copy.setLastModified(provider.getLastModified());
+        copy.setName(provider.getName());
+        copy.setOriginKey(provider.getOriginKey());
+        copy.setType(provider.getType());
+        copy.setConfig(provider.getConfig());
+        copy.setIdentityZoneId(provider.getIdentityZoneId());
+        copy.setActive(provider.isActive());
+        return copy;
     }
 
     @Override
@@ -105,6 +231,7 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         } catch (DuplicateKeyException e) {
             throw new IdpAlreadyExistsException(e.getMostSpecificCause().getMessage());
         }
+        cache.remove(identityProvider.getIdentityZoneId());
         return retrieve(id);
     }
 
@@ -124,7 +251,9 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
                 ps.setString(pos++, identityProvider.getId().trim());
             }
         });
-        return retrieve(identityProvider.getId());
+        IdentityProvider updated = retrieve(identityProvider.getId());
+        cache.remove(updated.getIdentityZoneId());
+        return updated;
     }
 
     protected void validate(IdentityProvider provider) {
@@ -136,6 +265,39 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         }
     }
 
+    private static final class CachedZone {
+
+        private final Map<String, IdentityProvider> byOrigin = new HashMap<String, IdentityProvider>();
+
+        private final long versions;
+
+        private final long lastModified;
+
+        private CachedZone(List<IdentityProvider> providers) {
+            long sum = 0;
+            long latest = 0;
+            for (IdentityProvider provider : providers) {
+                byOrigin.put(provider.getOriginKey(), provider);
+                sum += provider.getVersion();
+                if (provider.getLastModified() != null) {
+                    latest = Math.max(latest, provider.getLastModified().getTime());
+                }
+            }
+            this.versions = sum;
+            this.lastModified = latest;
+        }
+
+        private List<IdentityProvider> providers(boolean activeOnly) {
+            List<IdentityProvider> result = new ArrayList<IdentityProvider>(byOrigin.size());
+            for (IdentityProvider provider : byOrigin.values()) {
+                if (!activeOnly || provider.isActive()) {
+                    result.add(copy(provider));
+                }
+            }
+            return result;
+        }
+    }
+
     private static final class IdentityProviderRowMapper implements RowMapper<IdentityProvider> {
         @Override
         public IdentityProvider mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -24,12 +24,20 @@ import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.AbstractClientAdminEvent;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
+import org.cloudfoundry.identity.uaa.util.LoadingCache;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.password.NoOpPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
@@ -47,10 +55,16 @@ import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 /**
- * A copy of JdbcClientDetailsService but with IdentityZone awareness
+ * A copy of JdbcClientDetailsService but with IdentityZone awareness.
+ * <p>
+ * Clients can optionally be cached per identity zone for a short time (see
+ * {@link #setCacheMaxAgeSeconds(int)}). Changes made through this service
+ * or announced with client admin events take effect immediately, changes
+ * made on other servers once the cached entry expires.
  */
+@ManagedResource
 public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsService implements ClientDetailsService,
-        ClientRegistrationService, ResourceMonitor<ClientDetails> {
+        ClientRegistrationService, ResourceMonitor<ClientDetails>, ApplicationListener<AbstractUaaEvent> {
 
     private static final Log logger = LogFactory.getLog(MultitenantJdbcClientDetailsService.class);
 
@@ -100,6 +114,19 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private JdbcListFactory listFactory;
 
+    private final LoadingCache<ClientKey, ClientDetails> cache = new LoadingCache<ClientKey, ClientDetails>(
+                    new LoadingCache.Loader<ClientKey, ClientDetails>() {
+                        @Override
+                        public ClientDetails load(ClientKey key) {
+                            return selectClientDetails(key.clientId, key.zoneId);
+                        }
+
+                        @Override
+                        public boolean isCurrent(ClientKey key, ClientDetails value) {
+                            return false;
+                        }
+                    });
+
     public MultitenantJdbcClientDetailsService(DataSource dataSource) {
         super(dataSource);
         Assert.notNull(dataSource, "DataSource required");
@@ -115,10 +142,35 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         this.passwordEncoder = passwordEncoder;
     }
 
+    /**
+     * @param cacheMaxAgeSeconds the time a client is cached for (default 0,
+     *            which disables the cache). Keep it short when several
+     *            servers share the database.
+     */
+    public void setCacheMaxAgeSeconds(int cacheMaxAgeSeconds) {
+        cache.setRefreshIntervalMillis(cacheMaxAgeSeconds * 1000l);
+    }
+
+    /**
+     * @param cacheMaxEntries the maximum number of clients to cache across
+     *            all identity zones (default 1000)
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        cache.setMaxEntries(cacheMaxEntries);
+    }
+
     public ClientDetails loadClientByClientId(String clientId) throws InvalidClientException {
+        String zoneId = IdentityZoneHolder.get().getId();
+        if (!cache.isEnabled()) {
+            return selectClientDetails(clientId, zoneId);
+        }
+        return copy(cache.get(new ClientKey(zoneId, clientId)));
+    }
+
+    private ClientDetails selectClientDetails(String clientId, String zoneId) throws InvalidClientException {
         ClientDetails details;
         try {
-            details = jdbcTemplate.queryForObject(selectClientDetailsSql, new ClientDetailsRowMapper(), clientId, IdentityZoneHolder.get().getId());
+            details = jdbcTemplate.queryForObject(selectClientDetailsSql, rowMapper, clientId, zoneId);
         } catch (EmptyResultDataAccessException e) {
             throw new NoSuchClientException("No client with requested id: " + clientId);
         }
@@ -126,30 +178,96 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         return details;
     }
 
+    private ClientDetails copy(ClientDetails details) {
+        BaseClientDetails copy = new BaseClientDetails(details);
+        copy.setAdditionalInformation(details.getAdditionalInformation());
+        if (details instanceof BaseClientDetails && ((BaseClientDetails) details).getAutoApproveScopes() != null) {
+            copy.setAutoApproveScopes(((BaseClientDetails) details).getAutoApproveScopes());
+        }
+        return copy;
+    }
+
+    private void evict(String clientId, String zoneId) {
+        cache.remove(new ClientKey(zoneId, clientId));
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof AbstractClientAdminEvent) {
+            // the event doesn't say which zone the client belongs to
+            clearCache();
+        }
+    }
+
+    @ManagedOperation(description = "Remove all entries from the client details cache")
+    public void clearCache() {
+        cache.clear();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Details Cache Size")
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Hit Count")
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Miss Count")
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Eviction Count")
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    // Each change evicts the client once the row has been written, so that a
+    // load running at the same time can't put the old row back in the cache
+
     public void addClientDetails(ClientDetails clientDetails) throws ClientAlreadyExistsException {
         try {
             jdbcTemplate.update(insertClientDetailsSql, getFields(clientDetails));
         } catch (DuplicateKeyException e) {
             throw new ClientAlreadyExistsException("Client already exists: " + clientDetails.getClientId(), e);
+        } finally {
+            evict(clientDetails.getClientId(), IdentityZoneHolder.get().getId());
         }
     }
 
     public void updateClientDetails(ClientDetails clientDetails) throws NoSuchClientException {
-        int count = jdbcTemplate.update(updateClientDetailsSql, getFieldsForUpdate(clientDetails));
+        int count;
+        try {
+            count = jdbcTemplate.update(updateClientDetailsSql, getFieldsForUpdate(clientDetails));
+        } finally {
+            evict(clientDetails.getClientId(), IdentityZoneHolder.get().getId());
+        }
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientDetails.getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
         }
     }
 
     public void updateClientSecret(String clientId, String secret) throws NoSuchClientException {
-        int count = jdbcTemplate.update(updateClientSecretSql, passwordEncoder.encode(secret), clientId, IdentityZoneHolder.get().getId());
+        int count;
+        try {
+            count = jdbcTemplate.update(updateClientSecretSql, passwordEncoder.encode(secret), clientId, IdentityZoneHolder.get().getId());
+        } finally {
+            evict(clientId, IdentityZoneHolder.get().getId());
+        }
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
     }
 
     public void removeClientDetails(String clientId) throws NoSuchClientException {
-        int count = jdbcTemplate.update(deleteClientDetailsSql, clientId, IdentityZoneHolder.get().getId());
+        int count;
+        try {
+            count = jdbcTemplate.update(deleteClientDetailsSql, clientId, IdentityZoneHolder.get().getId());
+        } finally {
+            evict(clientId, IdentityZoneHolder.get().getId());
+        }
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
@@ -280,6 +398,32 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         }
     }
 
+    private static final class ClientKey {
+
+        private final String zoneId;
+
+        private final String clientId;
+
+        private ClientKey(String zoneId, String clientId) {
+            this.zoneId = zoneId;
+            this.clientId = clientId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return zoneId.equals(other.zoneId) && clientId.equals(other.clientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * zoneId.hashCode() + clientId.hashCode();
+        }
+    }
+
     interface JsonMapper {
         String write(Object input) throws Exception;
 
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+
+public class InMemoryFailedLoginCountingAuditServiceTests {
+
+    private InMemoryFailedLoginCountingAuditService auditService = new InMemoryFailedLoginCountingAuditService();
+
+    @Test
+    public void failuresAreReturnedMostRecentFirst() {
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 2000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2", now));
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(2, events.size());
+        assertEquals(now - 1000, events.get(0).getTime());
+        assertEquals(UserAuthenticationFailure, events.get(0).getType());
+        assertEquals(1, auditService.find("1", now - 1500).size());
+    }
+
+    @Test
+    public void successResetsFailures() {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", System.currentTimeMillis()));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", System.currentTimeMillis()));
+        assertEquals(0, auditService.find("1", 0).size());
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", System.currentTimeMillis()));
+        auditService.log(getAuditEvent(PasswordChangeSuccess, "1", System.currentTimeMillis()));
+        assertEquals(0, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void onlyTheMostRecentFailuresAreKept() {
+        auditService.setMaxFailuresPerUser(3);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now + i));
+        }
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(3, events.size());
+        assertEquals(now + 4, events.get(0).getTime());
+        assertEquals(now + 2, events.get(2).getTime());
+    }
+
+    @Test
+    public void oldFailuresArePurged() {
+        auditService.setMaxAgeSeconds(60);
+        auditService.setPurgeIntervalSeconds(0);
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", System.currentTimeMillis() - 120 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2", System.currentTimeMillis()));
+        assertEquals(1, auditService.getUserCount());
+    }
+
+    @Test
+    public void unknownUsersAreLoadedOnceFromThePersistentService() {
+        UaaAuditService persistent = mock(UaaAuditService.class);
+        long now = System.currentTimeMillis();
+        when(persistent.find("1", now - 3600 * 1000)).thenReturn(Arrays.asList(
+                        getAuditEvent(UserAuthenticationFailure, "1", now - 1),
+                        getAuditEvent(UserAuthenticationFailure, "1", now - 2)));
+        auditService = new InMemoryFailedLoginCountingAuditService(persistent);
+        auditService.setReloadIntervalSeconds(60);
+        assertEquals(2, auditService.find("1", now - 3600 * 1000).size());
+        AuditEvent failure = getAuditEvent(UserAuthenticationFailure, "1", now);
+        auditService.log(failure);
+        List<AuditEvent> events = auditService.find("1", now - 3600 * 1000);
+        assertEquals(3, events.size());
+        assertEquals(now, events.get(0).getTime());
+        assertEquals(1, auditService.getLoadCount());
+        verify(persistent).log(failure);
+    }
+
+    @Test
+    public void loginsOnOtherServersAreSeenAfterTheReloadInterval() {
+        UaaAuditService persistent = mock(UaaAuditService.class);
+        long now = System.currentTimeMillis();
+        when(persistent.find("1", now - 3600 * 1000)).thenReturn(Arrays.asList(
+                        getAuditEvent(UserAuthenticationFailure, "1", now - 1),
+                        getAuditEvent(UserAuthenticationFailure, "1", now - 2)));
+        auditService = new InMemoryFailedLoginCountingAuditService(persistent);
+        assertEquals(2, auditService.find("1", now - 3600 * 1000).size());
+        // the user logged in on another server, which cleared the failures
+        when(persistent.find("1", now - 3600 * 1000)).thenReturn(new ArrayList<AuditEvent>());
+        assertEquals(0, auditService.find("1", now - 3600 * 1000).size());
+        assertEquals(2, auditService.getLoadCount());
+    }
+
+    @Test
+    public void bruteForceAttackIsLockedOutWithoutQueries() throws Exception {
+        UaaAuditService persistent = mock(UaaAuditService.class);
+        auditService = new InMemoryFailedLoginCountingAuditService(persistent);
+        auditService.setMaxFailuresPerUser(5);
+        auditService.setReloadIntervalSeconds(60);
+        final PeriodLockoutPolicy policy = new PeriodLockoutPolicy(auditService);
+        policy.setLockoutAfterFailures(5);
+        final UaaUser joe = mock(UaaUser.class);
+        when(joe.getId()).thenReturn("1");
+        final Authentication authentication = mock(Authentication.class);
+        assertTrue(policy.isAllowed(joe, authentication));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> attempts = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                attempts.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean allowed = policy.isAllowed(joe, authentication);
+                        if (allowed) {
+                            auditService.log(getAuditEvent(UserAuthenticationFailure, "1",
+                                            System.currentTimeMillis()));
+                        }
+                        return allowed;
+                    }
+                }));
+            }
+            int allowed = 0;
+            for (Future<Boolean> attempt : attempts) {
+                allowed += attempt.get() ? 1 : 0;
+            }
+            // every thread may have been let in before the fifth failure was
+            // recorded, but no more
+            assertTrue("Allowed " + allowed + " attempts", allowed >= 5 && allowed < 5 + 8);
+        } finally {
+            executor.shutdown();
+        }
+        assertFalse(policy.isAllowed(joe, authentication));
+        assertEquals(1, auditService.getLoadCount());
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal, long time) {
+        return new AuditEvent(type, principal, "1.1.1.1", null, time, IdentityZone.getUaa().getId());
+    }
+
+}
@@ -13,7 +13,10 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PrincipalAuthenticationFailure;
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
@@ -72,6 +75,159 @@ public class JdbcAuditServiceTests extends JdbcTestBase {
         assertEquals(1, events.size());
     }
 
+    @Test
+    public void asyncEventsAreFoundBeforeTheyAreWritten() throws Exception {
+        auditService.setAsync(true);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientB"));
+            assertEquals(3, auditService.getQueueDepth());
+            assertEquals(2, auditService.find("clientA", 0).size());
+            assertEquals(3, auditService.getQueueDepth());
+            assertEquals(0, auditService.getFlushCount());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void failedBatchesAreRetried() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        auditService = new JdbcAuditService(dataSource) {
+            @Override
+            protected void write(List<AuditEvent> events) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Database is down");
+                }
+                super.write(events);
+            }
+        };
+        auditService.setAsync(true);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.flush();
+            assertEquals(0, auditService.getQueueDepth());
+            assertEquals(0, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='clientA'"));
+            assertEquals(2, auditService.find("clientA", 0).size());
+            auditService.flush();
+            auditService.flush();
+            assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='clientA'"));
+            assertEquals(2, auditService.find("clientA", 0).size());
+            assertEquals(0, auditService.getDroppedCount());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void eventsBeingWrittenAreOnlyFoundOnce() throws Exception {
+        final List<Integer> found = new ArrayList<Integer>();
+        auditService = new JdbcAuditService(dataSource) {
+            @Override
+            protected void write(List<AuditEvent> events) {
+                super.write(events);
+                // drop the milliseconds, like a database that stores whole seconds
+                for (AuditEvent event : events) {
+                    jdbcTemplate.update("update sec_audit set created=? where created=?",
+                                    new Timestamp(event.getTime() / 1000 * 1000), new Timestamp(event.getTime()));
+                }
+                found.add(find("clientA", 0).size());
+            }
+        };
+        auditService.setAsync(true);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.flush();
+            assertEquals(Arrays.asList(2), found);
+            assertEquals(2, auditService.find("clientA", 0).size());
+            assertEquals(1, auditService.getFlushCount());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void batchesAreDroppedAfterTheLastRetry() throws Exception {
+        auditService = new JdbcAuditService(dataSource) {
+            @Override
+            protected void write(List<AuditEvent> events) {
+                throw new IllegalStateException("Database is down");
+            }
+        };
+        auditService.setAsync(true);
+        auditService.setMaxRetries(1);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.flush();
+            assertEquals(0, auditService.getDroppedCount());
+            auditService.flush();
+            assertEquals(1, auditService.getDroppedCount());
+            assertEquals(0, auditService.getFlushCount());
+            assertEquals(0, auditService.find("clientA", 0).size());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void asyncEventsAreWrittenWhenFlushSizeIsReached() throws Exception {
+        auditService.setAsync(true);
+        auditService.setFlushSize(2);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            for (int i = 0; i < 50 && auditService.getFlushCount() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='clientA'"));
+        } finally {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void queuedEventsAreWrittenOnDestroy() throws Exception {
+        auditService.setAsync(true);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+        auditService.destroy();
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='clientA'"));
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='clientA'"));
+    }
+
+    @Test
+    public void eventsAreDroppedWhenTheQueueIsFull() throws Exception {
+        auditService.setAsync(true);
+        auditService.setQueueCapacity(1);
+        auditService.setFlushSize(10);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.setOverflowPolicy(JdbcAuditService.OverflowPolicy.DROP);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"));
+            assertEquals(1, auditService.getDroppedCount());
+            assertEquals(1, auditService.find("clientA", 0).size());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal) {
         return getAuditEvent(type, principal, null);
     }
@@ -61,6 +61,16 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
         assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
     }
 
+    @Test
+    public void oldDataIsOnlyDeletedOncePerPurgeInterval() throws Exception {
+        auditService.setPurgeIntervalSeconds(3600);
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        jdbcTemplate.update("update sec_audit set created=?", new Timestamp(now - 3 * 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+    }
+
     @Test
     public void userAuthenticationSuccessResetsData() throws Exception {
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
@@ -77,6 +87,21 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
         assertEquals(0, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
     }
 
+    @Test
+    public void successInTheSameBatchResetsEarlierFailures() throws Exception {
+        auditService.setAsync(true);
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        try {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+            auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", "joe"));
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+            assertEquals(1, auditService.find("1", 0).size());
+        } finally {
+            auditService.destroy();
+        }
+    }
+
     @Test
     public void findMethodOnlyReturnsEventsWithinRequestedPeriod() {
         long now = System.currentTimeMillis();
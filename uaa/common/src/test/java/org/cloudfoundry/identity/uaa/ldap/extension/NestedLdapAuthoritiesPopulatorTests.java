@@ -0,0 +1,199 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.ldap.extension;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.security.core.GrantedAuthority;
+
+public class NestedLdapAuthoritiesPopulatorTests {
+
+    private static final String USER = "uid=marissa,ou=people,dc=test,dc=com";
+
+    private final Map<String, List<String>> members = new LinkedHashMap<String, List<String>>();
+
+    private final List<String> filters = Collections.synchronizedList(new ArrayList<String>());
+
+    private SpringSecurityLdapTemplate template = mock(SpringSecurityLdapTemplate.class);
+
+    private NestedLdapAuthoritiesPopulator populator;
+
+    @Before
+    public void setUp() throws Exception {
+        // marissa is in a, b and c; a is in d, b and c are in e, d and e are in f, and f is in a
+        group("a", USER);
+        group("b", USER);
+        group("c", USER);
+        group("d", dn("a"));
+        group("e", dn("b"), dn("c"));
+        group("f", dn("d"), dn("e"));
+        members.get(dn("a")).add(dn("f"));
+
+        when(template.searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class),
+                        any(String[].class))).thenAnswer(new Answer<Set<Map<String, String[]>>>() {
+            @Override
+            public Set<Map<String, String[]>> answer(InvocationOnMock invocation) throws Throwable {
+                String filter = (String) invocation.getArguments()[1];
+                Object[] params = (Object[]) invocation.getArguments()[2];
+                filters.add(filter);
+                Set<String> searched = new HashSet<String>();
+                for (int i = 0; i < params.length; i += 2) {
+                    searched.add((String) params[i]);
+                }
+                boolean inChain = filter.contains(NestedLdapAuthoritiesPopulator.LDAP_MATCHING_RULE_IN_CHAIN);
+                Set<Map<String, String[]>> result = new HashSet<Map<String, String[]>>();
+                for (String group : groupsOf(searched, inChain)) {
+                    Map<String, String[]> record = new HashMap<String, String[]>();
+                    record.put(SpringSecurityLdapTemplate.DN_KEY, new String[] {group});
+                    record.put("cn", new String[] {group.substring(3, group.indexOf(','))});
+                    result.add(record);
+                }
+                return result;
+            }
+        });
+
+        populator = new NestedLdapAuthoritiesPopulator(mock(ContextSource.class), "ou=groups,dc=test,dc=com") {
+            @Override
+            protected SpringSecurityLdapTemplate getLdapTemplate() {
+                return template;
+            }
+        };
+        populator.setGroupSearchFilter("member={0}");
+        populator.setRolePrefix("");
+        populator.setConvertToUpperCase(false);
+        populator.setAttributeNames(new HashSet<String>(Arrays.asList("cn")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        populator.destroy();
+    }
+
+    @Test
+    public void testDepthFirstSearchesOncePerGroup() throws Exception {
+        assertEquals(roles("a", "b", "c", "d", "e", "f"), roles(populator.getGroupMembershipRoles(USER, "marissa")));
+        assertTrue(filters.size() > 6);
+    }
+
+    @Test
+    public void testBreadthFirstSearchesOncePerLevel() throws Exception {
+        populator.setBreadthFirst(true);
+        assertEquals(roles("a", "b", "c", "d", "e", "f"), roles(populator.getGroupMembershipRoles(USER, "marissa")));
+        assertEquals(4, filters.size());
+        assertEquals("member={0}", filters.get(0));
+        assertEquals("(|(member={0})(member={2})(member={4}))", filters.get(1));
+    }
+
+    @Test
+    public void testBreadthFirstStopsAtMaxSearchDepth() throws Exception {
+        populator.setBreadthFirst(true);
+        populator.setMaxSearchDepth(2);
+        assertEquals(roles("a", "b", "c", "d", "e"), roles(populator.getGroupMembershipRoles(USER, "marissa")));
+        assertEquals(2, filters.size());
+    }
+
+    @Test
+    public void testBreadthFirstSplitsLargeFilters() throws Exception {
+        populator.setBreadthFirst(true);
+        populator.setMaxFilterSize(2);
+        populator.setSearchThreads(2);
+        assertEquals(roles("a", "b", "c", "d", "e", "f"), roles(populator.getGroupMembershipRoles(USER, "marissa")));
+        assertEquals(5, filters.size());
+        assertTrue(filters.contains("(|(member={0})(member={2}))"));
+    }
+
+    @Test
+    public void testMatchingRuleInChainSearchesOnce() throws Exception {
+        populator.setUseMatchingRuleInChain(true);
+        assertEquals(roles("a", "b", "c", "d", "e", "f"), roles(populator.getGroupMembershipRoles(USER, "marissa")));
+        assertEquals(Arrays.asList("member:1.2.840.113556.1.4.1941:={0}"), filters);
+    }
+
+    @Test
+    public void testGroupSearchesAreCached() throws Exception {
+        populator.setCacheSeconds(60);
+        populator.getGroupMembershipRoles(USER, "marissa");
+        int searches = filters.size();
+        filters.clear();
+        // paul only needs a search for his own groups, the groups of a are already known
+        members.get(dn("a")).add("uid=paul,ou=people,dc=test,dc=com");
+        assertEquals(roles("a", "d", "f"), roles(populator.getGroupMembershipRoles("uid=paul,ou=people,dc=test,dc=com", "paul")));
+        assertEquals(1, filters.size());
+        assertEquals(searches + 1, populator.getCacheMissCount());
+        assertTrue(populator.getCacheHitCount() > 0);
+        filters.clear();
+        populator.clearCache();
+        assertEquals(roles("a", "d", "f"), roles(populator.getGroupMembershipRoles("uid=paul,ou=people,dc=test,dc=com", "paul")));
+        assertTrue(filters.size() > 1);
+    }
+
+    private void group(String name, String... memberDns) {
+        members.put(dn(name), new ArrayList<String>(Arrays.asList(memberDns)));
+    }
+
+    private static String dn(String name) {
+        return "cn=" + name + ",ou=groups,dc=test,dc=com";
+    }
+
+    private Set<String> groupsOf(Set<String> dns, boolean nested) {
+        Set<String> groups = new HashSet<String>();
+        for (Map.Entry<String, List<String>> group : members.entrySet()) {
+            for (String member : group.getValue()) {
+                if (dns.contains(member)) {
+                    groups.add(group.getKey());
+                }
+            }
+        }
+        if (nested) {
+            Set<String> all = new HashSet<String>(dns);
+            while (all.addAll(groups)) {
+                groups.addAll(groupsOf(all, false));
+            }
+            groups.remove(USER);
+        }
+        return groups;
+    }
+
+    private static Set<String> roles(String... roles) {
+        return new HashSet<String>(Arrays.asList(roles));
+    }
+
+    private static Set<String> roles(Set<GrantedAuthority> authorities) {
+        Set<String> roles = new HashSet<String>();
+        for (GrantedAuthority authority : authorities) {
+            roles.add(authority.getAuthority());
+        }
+        return roles;
+    }
+}
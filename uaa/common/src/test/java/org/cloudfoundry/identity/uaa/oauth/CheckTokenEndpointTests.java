@@ -24,6 +24,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationTestFactory;
 import org.cloudfoundry.identity.uaa.codestore.InMemoryExpiringCodeStore;
@@ -35,6 +36,7 @@ import org.cloudfoundry.identity.uaa.oauth.approval.InMemoryApprovalStore;
 import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
 import org.cloudfoundry.identity.uaa.oauth.token.UaaTokenServices;
 import org.cloudfoundry.identity.uaa.user.MockUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -48,6 +50,7 @@ import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
 import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
 import org.springframework.security.oauth2.provider.client.InMemoryClientDetailsService;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
@@ -416,4 +419,40 @@ public class CheckTokenEndpointTests {
         assertEquals("client", result.get("user_id"));
     }
 
+    @Test
+    public void testUserTokenLoadsClientAndUserOnce() {
+        // the token services add this scope to every user token
+        approvalStore.addApproval(new Approval(userId, "client", "cloud_controller.read", new Date(
+                        System.currentTimeMillis() + 30000), ApprovalStatus.APPROVED, new Date(
+                        System.currentTimeMillis() - 1000)));
+        final AtomicInteger clientLoads = new AtomicInteger();
+        tokenServices.setClientDetailsService(new ClientDetailsService() {
+            @Override
+            public ClientDetails loadClientByClientId(String clientId) {
+                clientLoads.incrementAndGet();
+                return clientDetailsService.loadClientByClientId(clientId);
+            }
+        });
+        final AtomicInteger userLoads = new AtomicInteger();
+        final UaaUserDatabase userDatabase = new MockUaaUserDatabase(userId, userName, "olds@vmware.com", null, null,
+                        new Date(System.currentTimeMillis() - 1000), new Date(System.currentTimeMillis() - 1000));
+        tokenServices.setUserDatabase(new UaaUserDatabase() {
+            @Override
+            public UaaUser retrieveUserByName(String username, String origin) {
+                userLoads.incrementAndGet();
+                return userDatabase.retrieveUserByName(username, origin);
+            }
+
+            @Override
+            public UaaUser retrieveUserById(String id) {
+                userLoads.incrementAndGet();
+                return userDatabase.retrieveUserById(id);
+            }
+        });
+        Map<String, ?> result = endpoint.checkToken(accessToken.getValue());
+        assertEquals(userId, result.get("user_id"));
+        assertEquals(1, clientLoads.get());
+        assertEquals(1, userLoads.get());
+    }
+
 }
@@ -14,11 +14,22 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
@@ -27,6 +38,9 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -45,6 +59,14 @@ public class RemoteTokenServicesTests {
 
     private HttpStatus status = HttpStatus.OK;
 
+    private Map<String, Object> tokenKey = new HashMap<String, Object>();
+
+    private final AtomicInteger checkTokenCount = new AtomicInteger();
+
+    private volatile int tokenKeyCount = 0;
+
+    private CountDownLatch checkTokenLatch = null;
+
     public RemoteTokenServicesTests() {
         services.setClientId("client");
         services.setClientSecret("secret");
@@ -53,11 +75,25 @@ public class RemoteTokenServicesTests {
         body.put(Claims.EMAIL, "olds@vmware.com");
         body.put(Claims.ISS, "http://some.issuer.com");
         body.put(Claims.USER_ID, "HDGFJSHGDF");
+        services.setCheckTokenEndpointUrl("/check_token");
+        tokenKey.put("value", "tokenkey");
         services.setRestTemplate(new RestTemplate() {
             @SuppressWarnings("unchecked")
             @Override
             public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
                             Class<T> responseType, Object... uriVariables) throws RestClientException {
+                if ("/token_key".equals(url)) {
+                    tokenKeyCount++;
+                    return new ResponseEntity<T>((T) tokenKey, headers, status);
+                }
+                checkTokenCount.incrementAndGet();
+                if (checkTokenLatch != null) {
+                    try {
+                        checkTokenLatch.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
                 return new ResponseEntity<T>((T) body, headers, status);
             }
         });
@@ -114,4 +150,134 @@ public class RemoteTokenServicesTests {
         assertEquals(mapper.writeValueAsString(additionalAuthorizationAttributesMap), result.getOAuth2Request()
                         .getRequestParameters().get(Claims.ADDITIONAL_AZ_ATTR));
     }
+
+    private String signedToken(String key, long expiresInSeconds) throws Exception {
+        Map<String, Object> claims = new HashMap<String, Object>(body);
+        claims.put(Claims.CLIENT_ID, "local");
+        claims.put(Claims.EXP, System.currentTimeMillis() / 1000 + expiresInSeconds);
+        return JwtHelper.encode(new ObjectMapper().writeValueAsString(claims), new MacSigner(key)).getEncoded();
+    }
+
+    @Test
+    public void testLocalVerificationDoesNotCallCheckToken() throws Exception {
+        services.setTokenKeyEndpointUrl("/token_key");
+        String token = signedToken("tokenkey", 60);
+        assertEquals("local", services.loadAuthentication(token).getOAuth2Request().getClientId());
+        assertEquals("olds", services.loadAuthentication(token).getUserAuthentication().getName());
+        assertEquals(0, checkTokenCount.get());
+        assertEquals(1, tokenKeyCount);
+    }
+
+    @Test
+    public void testLocalVerificationFallsBackForOpaqueToken() throws Exception {
+        services.setTokenKeyEndpointUrl("/token_key");
+        OAuth2Authentication result = services.loadAuthentication("FOO");
+        assertEquals("remote", result.getOAuth2Request().getClientId());
+        assertEquals(1, checkTokenCount.get());
+        assertEquals(0, tokenKeyCount);
+    }
+
+    @Test
+    public void testLocalVerificationRefreshesRotatedKey() throws Exception {
+        services.setTokenKeyEndpointUrl("/token_key");
+        services.setKeyRefreshIntervalSeconds(0);
+        services.loadAuthentication(signedToken("tokenkey", 60));
+        tokenKey.put("value", "newkey");
+        OAuth2Authentication result = services.loadAuthentication(signedToken("newkey", 60));
+        assertEquals("local", result.getOAuth2Request().getClientId());
+        assertEquals(2, tokenKeyCount);
+        assertEquals(0, checkTokenCount.get());
+    }
+
+    @Test
+    public void testLocalVerificationFallsBackForUnknownKey() throws Exception {
+        services.setTokenKeyEndpointUrl("/token_key");
+        services.loadAuthentication(signedToken("tokenkey", 60));
+        OAuth2Authentication result = services.loadAuthentication(signedToken("otherkey", 60));
+        assertEquals("remote", result.getOAuth2Request().getClientId());
+        assertEquals(1, tokenKeyCount);
+        assertEquals(1, checkTokenCount.get());
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testLocalVerificationRejectsExpiredToken() throws Exception {
+        services.setTokenKeyEndpointUrl("/token_key");
+        services.loadAuthentication(signedToken("tokenkey", -60));
+    }
+
+    @Test
+    public void testCachedResultDoesNotCallCheckTokenAgain() throws Exception {
+        services.setCacheMaxEntries(10);
+        OAuth2Authentication first = services.loadAuthentication("FOO");
+        OAuth2Authentication second = services.loadAuthentication("FOO");
+        assertEquals("remote", second.getOAuth2Request().getClientId());
+        assertNotSame(first, second);
+        assertEquals(1, checkTokenCount.get());
+        assertEquals(1, services.getCacheHitCount());
+        assertEquals(1, services.getCacheMissCount());
+        assertEquals(1, services.getRemoteCheckCount());
+    }
+
+    @Test
+    public void testExpiredTokenIsNotCached() throws Exception {
+        services.setCacheMaxEntries(10);
+        body.put(Claims.EXP, (int) (System.currentTimeMillis() / 1000 - 1));
+        services.loadAuthentication("FOO");
+        services.loadAuthentication("FOO");
+        assertEquals(2, checkTokenCount.get());
+    }
+
+    @Test
+    public void testInvalidTokenIsCachedWhenConfigured() throws Exception {
+        services.setCacheMaxEntries(10);
+        services.setInvalidTokenCacheSeconds(60);
+        body.put("error", "invalid_token");
+        for (int i = 0; i < 2; i++) {
+            try {
+                services.loadAuthentication("FOO");
+                fail("Expected InvalidTokenException");
+            } catch (InvalidTokenException expected) {
+            }
+        }
+        assertEquals(1, checkTokenCount.get());
+    }
+
+    @Test
+    public void testInvalidTokenIsNotCachedByDefault() throws Exception {
+        services.setCacheMaxEntries(10);
+        body.put("error", "invalid_token");
+        for (int i = 0; i < 2; i++) {
+            try {
+                services.loadAuthentication("FOO");
+                fail("Expected InvalidTokenException");
+            } catch (InvalidTokenException expected) {
+            }
+        }
+        assertEquals(2, checkTokenCount.get());
+    }
+
+    @Test
+    public void testConcurrentChecksOfSameTokenAreCoalesced() throws Exception {
+        services.setCacheMaxEntries(10);
+        checkTokenLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<OAuth2Authentication>> results = new ArrayList<Future<OAuth2Authentication>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<OAuth2Authentication>() {
+                @Override
+                public OAuth2Authentication call() throws Exception {
+                    return services.loadAuthentication("FOO");
+                }
+            }));
+        }
+        while (services.getCoalescedCount() + services.getCacheHitCount() < 3 && checkTokenCount.get() < 2) {
+            Thread.sleep(10);
+        }
+        checkTokenLatch.countDown();
+        for (Future<OAuth2Authentication> result : results) {
+            assertEquals("remote", result.get().getOAuth2Request().getClientId());
+        }
+        executor.shutdown();
+        assertEquals(1, checkTokenCount.get());
+    }
 }
@@ -13,7 +13,10 @@
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 
@@ -62,4 +65,18 @@ public class InMemoryApprovalStore implements ApprovalStore {
         return returnList;
     }
 
+    @Override
+    public Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds) {
+        Map<String, List<Approval>> result = new HashMap<String, List<Approval>>();
+        for (Approval a : store) {
+            if (userIds.contains(a.getUserId())) {
+                if (!result.containsKey(a.getUserId())) {
+                    result.put(a.getUserId(), new ArrayList<Approval>());
+                }
+                result.get(a.getUserId()).add(a);
+            }
+        }
+        return result;
+    }
+
 }
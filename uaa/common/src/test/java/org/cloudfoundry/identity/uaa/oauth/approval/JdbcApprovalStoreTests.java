@@ -13,12 +13,15 @@
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.APPROVED;
 import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.DENIED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
@@ -100,6 +103,14 @@ public class JdbcApprovalStoreTests extends JdbcTestBase {
         assertEquals(1, dao.getApprovals("u1", "c1").size());
     }
 
+    @Test
+    public void canGetApprovalsForSeveralUsers() {
+        Map<String, List<Approval>> approvals = dao.getApprovalsForUsers(Arrays.asList("u1", "u2", "u3"));
+        assertEquals(2, approvals.get("u1").size());
+        assertEquals(1, approvals.get("u2").size());
+        assertNull(approvals.get("u3"));
+    }
+
     @Test
     public void canAddApproval() {
         assertTrue(dao.addApproval(new Approval("u2", "c2", "dash.user", 12000, APPROVED)));
@@ -13,8 +13,11 @@
 package org.cloudfoundry.identity.uaa.oauth.token;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 
 /**
  * 
@@ -84,6 +87,25 @@ public class SignerProviderTests {
         signerProvider.getVerifier().verify("joel".getBytes(), signedValue);
     }
 
+    @Test
+    public void verifierIsReusedForSameKey() {
+        signerProvider.setSigningKey("testkey");
+        SignatureVerifier verifier = signerProvider.getVerifier();
+        assertSame(verifier, signerProvider.getVerifier());
+    }
+
+    @Test
+    public void verifierIsRebuiltWhenSigningKeyChanges() {
+        signerProvider.setSigningKey("testkey");
+        SignatureVerifier verifier = signerProvider.getVerifier();
+        signerProvider.setSigningKey("otherkey");
+        SignatureVerifier other = signerProvider.getVerifier();
+        assertNotSame(verifier, other);
+
+        byte[] signedValue = signerProvider.getSigner().sign("joel".getBytes());
+        other.verify("joel".getBytes(), signedValue);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void keysNotMatchingWithMacSigner() throws Exception {
         signerProvider.setSigningKey("aKey");
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.oauth.Claims;
+import org.junit.Test;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+
+public class TokenClaimsCacheTests {
+
+    private TokenClaimsCache cache = new TokenClaimsCache();
+
+    private SignatureVerifier verifier = new MacSigner("key");
+
+    private Map<String, Object> claims(long expiresInSeconds) {
+        Map<String, Object> claims = new HashMap<String, Object>();
+        claims.put(Claims.EXP, (int) (System.currentTimeMillis() / 1000 + expiresInSeconds));
+        claims.put(Claims.CLIENT_ID, "client");
+        return claims;
+    }
+
+    @Test
+    public void testStoredClaimsAreReturned() {
+        assertNull(cache.get("token", verifier));
+        cache.put("token", verifier, claims(60));
+        assertEquals("client", cache.get("token", verifier).get(Claims.CLIENT_ID));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testDifferentVerifierIsAMiss() {
+        cache.put("token", verifier, claims(60));
+        assertNull(cache.get("token", new MacSigner("key")));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testExpiredTokenIsNotCached() {
+        cache.put("token", verifier, claims(-1));
+        assertNull(cache.get("token", verifier));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        cache.setMaxEntries(2);
+        cache.put("token1", verifier, claims(60));
+        cache.put("token2", verifier, claims(60));
+        cache.get("token1", verifier);
+        cache.put("token3", verifier, claims(60));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("token2", verifier));
+    }
+
+    @Test
+    public void testZeroMaxEntriesDisablesCache() {
+        cache.setMaxEntries(0);
+        cache.put("token", verifier, claims(60));
+        assertNull(cache.get("token", verifier));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCachedClaimsAreUnmodifiable() {
+        cache.put("token", verifier, claims(60));
+        cache.get("token", verifier).put(Claims.CLIENT_ID, "other");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNestedClaimsAreCopiedAndUnmodifiable() {
+        Map<String, Object> claims = claims(60);
+        List<String> scopes = new ArrayList<String>(Arrays.asList("openid"));
+        claims.put(Claims.SCOPE, scopes);
+        cache.put("token", verifier, claims);
+        scopes.add("uaa.admin");
+        List<String> cached = (List<String>) cache.get("token", verifier).get(Claims.SCOPE);
+        assertEquals(Arrays.asList("openid"), cached);
+        try {
+            cached.add("uaa.admin");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.jdbc.core.ColumnMapRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
 public class JdbcPagingListTests extends JdbcTestBase {
 
@@ -157,4 +158,44 @@ public class JdbcPagingListTests extends JdbcTestBase {
         assertEquals(3, count); // count is less than original size estimate
     }
 
+    @Test
+    public void testLazyCountWithShortFirstPage() throws Exception {
+        list = new JdbcPagingList<Map<String, Object>>(new NamedParameterJdbcTemplate(jdbcTemplate), limitSqlAdapter,
+                        "SELECT * from foo", Collections.<String, Object> emptyMap(), new ColumnMapRowMapper(), 10,
+                        true);
+        jdbcTemplate.update("DELETE from foo where id>3");
+        assertEquals(4, list.size());
+    }
+
+    @Test
+    public void testLazyCountWithFullFirstPage() throws Exception {
+        list = new JdbcPagingList<Map<String, Object>>(new NamedParameterJdbcTemplate(jdbcTemplate), limitSqlAdapter,
+                        "SELECT * from foo", Collections.<String, Object> emptyMap(), new ColumnMapRowMapper(), 3,
+                        true);
+        assertEquals(5, list.size());
+        assertNotNull(list.get(4).get("name"));
+    }
+
+    @Test
+    public void testLazyCountIterationOverPages() throws Exception {
+        list = new JdbcPagingList<Map<String, Object>>(new NamedParameterJdbcTemplate(jdbcTemplate), limitSqlAdapter,
+                        "SELECT * from foo order by id asc", Collections.<String, Object> emptyMap(),
+                        new ColumnMapRowMapper(), 2, true);
+        Set<String> names = new HashSet<String>();
+        for (Map<String, Object> map : list) {
+            String name = (String) map.get("name");
+            assertNotNull(name);
+            names.add(name);
+        }
+        assertEquals(5, names.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testLazyCountGetBeyondEnd() throws Exception {
+        list = new JdbcPagingList<Map<String, Object>>(new NamedParameterJdbcTemplate(jdbcTemplate), limitSqlAdapter,
+                        "SELECT * from foo", Collections.<String, Object> emptyMap(), new ColumnMapRowMapper(), 3,
+                        true);
+        list.get(5);
+    }
+
 }
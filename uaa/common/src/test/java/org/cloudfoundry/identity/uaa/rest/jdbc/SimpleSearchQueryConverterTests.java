@@ -0,0 +1,94 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFilter;
+import org.junit.Test;
+
+public class SimpleSearchQueryConverterTests {
+
+    private SimpleSearchQueryConverter converter = new SimpleSearchQueryConverter();
+
+    @Test
+    public void testFiltersWithTheSameShapeAreCompiledOnce() {
+        ProcessedFilter first = converter.convert("userName eq \"joe\" and origin eq \"uaa\"", null, true);
+        ProcessedFilter second = converter.convert("userName eq \"marissa\" and origin eq \"ldap\"", null, true);
+        assertEquals(1, converter.getCachedFilterCount());
+        assertFalse(first.getParamPrefix().equals(second.getParamPrefix()));
+        assertEquals(first.getSql().replace(first.getParamPrefix(), second.getParamPrefix()), second.getSql());
+        assertEquals("marissa", second.getParams().get(second.getParamPrefix() + "0"));
+        assertEquals("ldap", second.getParams().get(second.getParamPrefix() + "1"));
+    }
+
+    @Test
+    public void testCompiledFilterKeepsWildcardsAndConstants() {
+        converter.convert("displayName co \"foo\" and meta.version eq 0", null, true);
+        ProcessedFilter pf = converter.convert("displayName co \"bar\" and meta.version eq 0", null, true);
+        assertEquals(1, converter.getCachedFilterCount());
+        assertEquals("%bar%", pf.getParams().get(pf.getParamPrefix() + "0"));
+        assertEquals(0.0, pf.getParams().get(pf.getParamPrefix() + "1"));
+        pf = converter.convert("displayName sw \"bar\" and meta.version eq 0", null, true);
+        assertEquals(2, converter.getCachedFilterCount());
+        assertEquals("bar%", pf.getParams().get(pf.getParamPrefix() + "0"));
+    }
+
+    @Test
+    public void testTimestampsHaveADifferentShape() {
+        converter.convert("meta.created gt \"foo\"", null, true);
+        ProcessedFilter pf = converter.convert("meta.created gt \"1970-01-01T00:00:00.000Z\"", null, true);
+        assertEquals(2, converter.getCachedFilterCount());
+        assertEquals("created > :" + pf.getParamPrefix() + "0", pf.getSql());
+        pf = converter.convert("meta.created gt \"1970-01-01T00:00:01.000Z\"", null, true);
+        assertEquals(new Date(1000), pf.getParams().get(pf.getParamPrefix() + "0"));
+    }
+
+    @Test
+    public void testSortOrderIsPartOfTheShape() {
+        converter.convert("userName eq \"joe\"", "userName", true);
+        ProcessedFilter pf = converter.convert("userName eq \"joe\"", "userName", false);
+        assertEquals(2, converter.getCachedFilterCount());
+        assertEquals("LOWER(userName) = LOWER(:" + pf.getParamPrefix() + "0) ORDER BY userName DESC", pf.getSql());
+    }
+
+    @Test
+    public void testEscapedAndLegacyFiltersAreNotCached() {
+        ProcessedFilter pf = converter.convert("userName eq \"jo\\\"e\"", null, true);
+        assertEquals("jo\"e", pf.getParams().get(pf.getParamPrefix() + "0"));
+        converter.convert("userName eq 'joe'", null, true);
+        assertEquals(0, converter.getCachedFilterCount());
+    }
+
+    @Test
+    public void testCacheIsClearedWhenTheMapperChanges() {
+        converter.convert("emails.value eq \"joe@test.org\"", null, true);
+        converter.setAttributeNameMapper(new SimpleAttributeNameMapper(Collections.singletonMap("emails\\.value",
+                        "email")));
+        assertEquals(0, converter.getCachedFilterCount());
+        ProcessedFilter pf = converter.convert("emails.value eq \"joe@test.org\"", null, true);
+        assertEquals("LOWER(email) = LOWER(:" + pf.getParamPrefix() + "0)", pf.getSql());
+    }
+
+    @Test
+    public void testZeroMaxCachedFiltersDisablesCache() {
+        converter.setMaxCachedFilters(0);
+        converter.convert("userName eq \"joe\"", null, true);
+        assertEquals(0, converter.getCachedFilterCount());
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserPasswordChangedEvent;
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+public class CachingUaaUserDatabaseTests {
+
+    private MockUaaUserDatabase delegate = spy(new MockUaaUserDatabase("id", "marissa", "marissa@test.org", "Marissa",
+                    "Bloggs"));
+
+    private CachingUaaUserDatabase database = new CachingUaaUserDatabase(delegate);
+
+    @After
+    public void clearRequest() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    private void startRequest() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+    }
+
+    @Test
+    public void testUserIsReadOncePerRequest() {
+        startRequest();
+        UaaUser user = database.retrieveUserByName("marissa", Origin.UAA);
+        assertSame(user, database.retrieveUserByName("Marissa", Origin.UAA));
+        assertSame(user, database.retrieveUserById("id"));
+        verify(delegate, times(1)).retrieveUserByName("marissa", Origin.UAA);
+        verify(delegate, times(0)).retrieveUserById("id");
+        assertEquals(2, database.getHitCount());
+        startRequest();
+        database.retrieveUserById("id");
+        verify(delegate, times(1)).retrieveUserById("id");
+    }
+
+    @Test
+    public void testNothingIsCachedOutsideARequestByDefault() {
+        database.retrieveUserById("id");
+        database.retrieveUserById("id");
+        verify(delegate, times(2)).retrieveUserById("id");
+        assertEquals(0, database.getSize());
+    }
+
+    @Test
+    public void testUsersAreSharedBetweenRequestsWhenEnabled() {
+        database.setMaxAgeSeconds(30);
+        database.retrieveUserById("id");
+        startRequest();
+        database.retrieveUserById("id");
+        verify(delegate, times(1)).retrieveUserById("id");
+        assertEquals(1, database.getSize());
+    }
+
+    @Test
+    public void testModifiedUserIsEvicted() {
+        database.setMaxAgeSeconds(30);
+        startRequest();
+        database.retrieveUserById("id");
+        database.onApplicationEvent(UserModifiedEvent.userModified("id", "marissa"));
+        assertEquals(0, database.getSize());
+        database.retrieveUserById("id");
+        verify(delegate, times(2)).retrieveUserById("id");
+    }
+
+    @Test
+    public void testUserWhosePasswordChangedIsEvicted() {
+        database.setMaxAgeSeconds(30);
+        database.retrieveUserById("id");
+        database.onApplicationEvent(new PasswordChanged("id"));
+        assertEquals(0, database.getSize());
+    }
+
+    @Test
+    public void testGroupChangeClearsTheCache() {
+        database.setMaxAgeSeconds(30);
+        database.retrieveUserById("id");
+        database.onApplicationEvent(GroupModifiedEvent.groupModified("group", "uaa.admin", new String[] { "id" }));
+        assertEquals(0, database.getSize());
+    }
+
+    private static class PasswordChanged extends AbstractUaaEvent implements UserPasswordChangedEvent {
+
+        private final String userId;
+
+        private PasswordChanged(String userId) {
+            super(userId);
+            this.userId = userId;
+        }
+
+        @Override
+        public String getUserId() {
+            return userId;
+        }
+
+        @Override
+        public AuditEvent getAuditEvent() {
+            throw new UnsupportedOperationException("Not needed to recognize a password change");
+        }
+    }
+}
@@ -12,13 +12,15 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.util;
 
-import java.lang.reflect.Field;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
-import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import org.junit.After;
@@ -26,7 +28,6 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
-import org.springframework.util.ReflectionUtils;
 
 public class CachingPasswordEncoderTest  {
 
@@ -120,37 +121,78 @@ public class CachingPasswordEncoderTest  {
         cachingPasswordEncoder.setMaxEncodedPasswords(4);
         assertEquals(maxpasswords, cachingPasswordEncoder.getMaxEncodedPasswords());
         assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
-        for (int i=0; i<cachingPasswordEncoder.getMaxKeys(); i++) {
-            String password = new RandomValueStringGenerator().generate();
-            for (int j=0; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
-                String encoded = cachingPasswordEncoder.encode(password);
-                assertTrue(cachingPasswordEncoder.matches(password, encoded));
-            }
+        String password = null;
+        for (int i=0; i<5 * cachingPasswordEncoder.getMaxKeys(); i++) {
+            password = new RandomValueStringGenerator().generate();
+            String encoded = cachingPasswordEncoder.encode(password);
+            assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        }
+        assertTrue(cachingPasswordEncoder.getNumberOfKeys() <= 16);
+        assertTrue(cachingPasswordEncoder.getEvictionCount() > 0);
+
+        //the most recently used password is still cached
+        String[] encoded = new String[maxpasswords + 1];
+        for (int j=0; j<encoded.length; j++) {
+            encoded[j] = cachingPasswordEncoder.encode(password);
+            assertTrue(cachingPasswordEncoder.matches(password, encoded[j]));
         }
-        assertEquals(maxkeys, cachingPasswordEncoder.getNumberOfKeys());
+        long hits = cachingPasswordEncoder.getHitCount();
+        for (int j=1; j<encoded.length; j++) {
+            assertTrue(cachingPasswordEncoder.matches(password, encoded[j]));
+        }
+        assertEquals(hits + maxpasswords, cachingPasswordEncoder.getHitCount());
+        //only the oldest encoding was forgotten
+        long misses = cachingPasswordEncoder.getMissCount();
+        assertTrue(cachingPasswordEncoder.matches(password, encoded[0]));
+        assertEquals(misses + 1, cachingPasswordEncoder.getMissCount());
+    }
+
+    @Test
+    public void testExpiredPasswordsAreForgotten() throws Exception {
+        cachingPasswordEncoder.setExpirySeconds(0);
         String password = new RandomValueStringGenerator().generate();
         String encoded = cachingPasswordEncoder.encode(password);
         assertTrue(cachingPasswordEncoder.matches(password, encoded));
-        //overflow happened
-        assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertEquals(0, cachingPasswordEncoder.getHitCount());
+        assertEquals(1, cachingPasswordEncoder.getEvictionCount());
+    }
 
-        for (int j=0; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
-            encoded = cachingPasswordEncoder.encode(password);
-            assertTrue(cachingPasswordEncoder.matches(password, encoded));
+    @Test
+    public void testConcurrentMatches() throws Exception {
+        final String[] passwords = new String[8];
+        final String[] encoded = new String[passwords.length];
+        for (int i=0; i<passwords.length; i++) {
+            passwords[i] = new RandomValueStringGenerator().generate();
+            encoded[i] = cachingPasswordEncoder.encode(passwords[i]);
+            assertTrue(cachingPasswordEncoder.matches(passwords[i], encoded[i]));
         }
-
-        Field field = ReflectionUtils.findField(cachingPasswordEncoder.getClass(), "cache");
-        field.setAccessible(true);
-        ConcurrentHashMap<CharSequence, Set<String>> cache = (ConcurrentHashMap<CharSequence, Set<String>>)ReflectionUtils.getField(
-            field,
-            cachingPasswordEncoder
-        );
-        assertNotNull(cache);
-        Set<String> passwords = cache.get(cachingPasswordEncoder.cacheEncode(password));
-        assertNotNull(passwords);
-        assertEquals(maxpasswords, passwords.size());
-        cachingPasswordEncoder.matches(password, cachingPasswordEncoder.encode(password));
-        assertEquals(0, passwords.size());
+        ExecutorService executor = Executors.newFixedThreadPool(passwords.length);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        long nanoStart = System.nanoTime();
+        try {
+            for (int i=0; i<passwords.length; i++) {
+                final int index = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean result = true;
+                        for (int j=0; j<1000; j++) {
+                            result &= cachingPasswordEncoder.matches(passwords[index], encoded[index]);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long nanoStop = System.nanoTime();
+        assertEquals(passwords.length * 1000, cachingPasswordEncoder.getHitCount());
+        System.out.println("CachingPasswordEncoder - "+passwords.length+" threads, Cache Time:"+((double)(nanoStop - nanoStart) / 1000000000.0)+" sec.");
     }
 
 
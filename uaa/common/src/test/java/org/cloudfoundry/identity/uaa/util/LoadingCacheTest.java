@@ -0,0 +1,122 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadingCacheTest {
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    private int loads = 0;
+
+    private boolean current = true;
+
+    private Runnable duringLoad;
+
+    private final LoadingCache<String, String> cache = new LoadingCache<String, String>(
+                    new LoadingCache.Loader<String, String>() {
+                        @Override
+                        public String load(String key) {
+                            loads++;
+                            String value = values.get(key);
+                            if (duringLoad != null) {
+                                duringLoad.run();
+                            }
+                            return value;
+                        }
+
+                        @Override
+                        public boolean isCurrent(String key, String value) {
+                            return current;
+                        }
+                    });
+
+    @Before
+    public void setUp() throws Exception {
+        values.put("a", "1");
+        values.put("b", "2");
+        cache.setRefreshIntervalMillis(60000);
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        cache.setRefreshIntervalMillis(0);
+        assertFalse(cache.isEnabled());
+        cache.get("a");
+        cache.get("a");
+        assertEquals(2, loads);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testValueIsLoadedOnce() throws Exception {
+        assertEquals("1", cache.get("a"));
+        values.put("a", "changed");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, loads);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testRemovedValueIsLoadedAgain() throws Exception {
+        cache.get("a");
+        values.put("a", "changed");
+        cache.remove("a");
+        assertEquals("changed", cache.get("a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        cache.setMaxEntries(1);
+        cache.get("a");
+        cache.get("b");
+        assertEquals(1, cache.size());
+        assertNull(cache.getIfPresent("a"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testStaleEntryIsOnlyReloadedIfNotCurrent() throws Exception {
+        cache.setRefreshIntervalMillis(1);
+        cache.get("a");
+        Thread.sleep(10);
+        cache.get("a");
+        assertEquals(1, loads);
+        current = false;
+        Thread.sleep(10);
+        cache.get("a");
+        assertEquals(2, loads);
+        assertEquals(1, cache.getRefreshCount());
+    }
+
+    @Test
+    public void testValueLoadedDuringARemovalIsNotCached() throws Exception {
+        duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                cache.remove("a");
+            }
+        };
+        cache.get("a");
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.authentication.AuthenticationOverloadedException;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+public class PooledPasswordEncoderTest {
+
+    private final CountDownLatch started = new CountDownLatch(2);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(2);
+
+    private PooledPasswordEncoder encoder;
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        callers.shutdownNow();
+        if (encoder != null) {
+            encoder.destroy();
+        }
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        encoder = new PooledPasswordEncoder(new BCryptPasswordEncoder(4), 2);
+        String encoded = encoder.encode("secret");
+        assertTrue(encoder.matches("secret", encoded));
+        assertFalse(encoder.matches("wrong", encoded));
+        assertEquals(2, encoder.getMatchCount());
+        assertEquals(0, encoder.getPending());
+    }
+
+    @Test
+    public void testChecksAreRejectedWhenTooManyArePending() throws Exception {
+        encoder = new PooledPasswordEncoder(new BlockingPasswordEncoder(), 2);
+        encoder.setMaxPending(2);
+        Future<Boolean> first = callers.submit(matches(IdentityZone.getUaa()));
+        Future<Boolean> second = callers.submit(matches(IdentityZone.getUaa()));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertRejected(IdentityZone.getUaa());
+        release.countDown();
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertEquals(1, encoder.getRejectedCount());
+        assertTrue(encoder.matches("secret", "secret"));
+    }
+
+    @Test
+    public void testOneZoneCantUseAllThePendingChecks() throws Exception {
+        encoder = new PooledPasswordEncoder(new BlockingPasswordEncoder(), 2);
+        encoder.setMaxPendingPerZone(2);
+        IdentityZone busy = MultitenancyFixture.identityZone("busy", "busy");
+        callers.submit(matches(busy));
+        callers.submit(matches(busy));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertRejected(busy);
+        release.countDown();
+        IdentityZoneHolder.set(MultitenancyFixture.identityZone("quiet", "quiet"));
+        assertTrue(encoder.matches("secret", "secret"));
+    }
+
+    private void assertRejected(IdentityZone zone) {
+        IdentityZoneHolder.set(zone);
+        try {
+            encoder.matches("secret", "secret");
+            fail("Expected AuthenticationOverloadedException");
+        } catch (AuthenticationOverloadedException e) {
+            // expected
+        } finally {
+            IdentityZoneHolder.clear();
+        }
+    }
+
+    private Callable<Boolean> matches(final IdentityZone zone) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                IdentityZoneHolder.set(zone);
+                try {
+                    return encoder.matches("secret", "secret");
+                } finally {
+                    IdentityZoneHolder.clear();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compares passwords as plain text, but counts down {@link #started} and
+     * waits for {@link #release} first.
+     */
+    private class BlockingPasswordEncoder implements PasswordEncoder {
+
+        @Override
+        public String encode(CharSequence rawPassword) {
+            return rawPassword.toString();
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return rawPassword.toString().equals(encodedPassword);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class ScopeMatcherTest {
+
+    @Test
+    public void testMatchesLikeTheWildcardPatterns() throws Exception {
+        Set<String> patterns = new LinkedHashSet<>(Arrays.asList("space.*.developer", "*.*.admin", "openid",
+                        "uaa.a*b", "*", "scim.*.read"));
+        String[] scopes = new String[] {
+            "space.1.developer",
+            "space.13242323423423423.developer",
+            "space.1",
+            "space.1.",
+            ".1.developer",
+            "space.1.developers",
+            "space.1.developer.test",
+            "space.13242323423423423..developer",
+            "a.b.admin",
+            "a..admin",
+            "openid",
+            "openid.x",
+            "uaa.ab",
+            "uaa.axb",
+            "uaa.axxb",
+            "uaa.axbx",
+            "anything",
+            "",
+            "scim.x.read",
+            "scim..read",
+        };
+        ScopeMatcher matcher = ScopeMatcher.compile(patterns);
+        Set<Pattern> wildcards = UaaStringUtils.constructWildcards(patterns);
+        for (String scope : scopes) {
+            assertEquals("Testing [" + scope + "]", UaaStringUtils.matches(wildcards, scope), matcher.matches(scope));
+        }
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void testNoPatternsMatchNothing() throws Exception {
+        assertFalse(ScopeMatcher.compile(null).matches("openid"));
+        assertFalse(ScopeMatcher.forScopes(new HashSet<String>()).matches("openid"));
+    }
+
+    @Test
+    public void testMatchersAreCachedByContent() throws Exception {
+        ScopeMatcher matcher = ScopeMatcher.forScopes(Arrays.asList("openid", "cached.*"));
+        assertSame(matcher, ScopeMatcher.forScopes(new HashSet<>(Arrays.asList("cached.*", "openid"))));
+        assertNotSame(matcher, ScopeMatcher.forScopes(Arrays.asList("openid")));
+        assertTrue(matcher.matches("cached.read"));
+    }
+
+    @Test
+    public void testMatchesSpeedTest() throws Exception {
+        Set<String> clientScopes = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            clientScopes.add("app" + i + ".*.read");
+            clientScopes.add("app" + i + ".write");
+        }
+        String[] userScopes = new String[5000];
+        for (int i = 0; i < userScopes.length; i++) {
+            userScopes[i] = "app" + (i % 1000) + (i % 2 == 0 ? ".space" + i + ".read" : ".write.x");
+        }
+        int iterations = 3;
+
+        long nanoStart = System.nanoTime();
+        int regexMatches = 0;
+        for (int n = 0; n < iterations; n++) {
+            Set<Pattern> wildcards = UaaStringUtils.constructWildcards(clientScopes);
+            for (String scope : userScopes) {
+                regexMatches += UaaStringUtils.matches(wildcards, scope) ? 1 : 0;
+            }
+        }
+        long regexTime = System.nanoTime() - nanoStart;
+
+        nanoStart = System.nanoTime();
+        int trieMatches = 0;
+        for (int n = 0; n < iterations; n++) {
+            ScopeMatcher matcher = ScopeMatcher.forScopes(clientScopes);
+            for (String scope : userScopes) {
+                trieMatches += matcher.matches(scope) ? 1 : 0;
+            }
+        }
+        long trieTime = System.nanoTime() - nanoStart;
+
+        assertEquals(regexMatches, trieMatches);
+        assertTrue(regexTime > trieTime);
+        System.out.println("ScopeMatcher - Regex Time:" + ((double) regexTime / 1000000000.0) + " sec. Trie Time:"
+                        + ((double) trieTime / 1000000000.0) + " sec.");
+    }
+}
@@ -13,6 +13,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -102,4 +103,37 @@ public class IdentityZoneResolvingFilterTest {
         Mockito.verifyZeroInteractions(chain);
     }
 
+    @Test
+    public void lookupsAreCachedUntilAZoneIsModified() throws Exception {
+        IdentityZoneResolvingFilter filter = new IdentityZoneResolvingFilter();
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        filter.setIdentityZoneProvisioning(dao);
+        filter.setInternalHostnames(new HashSet<>(Arrays.asList("uaa.mycf.com")));
+        filter.setCacheMaxAgeSeconds(60);
+
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setSubdomain("myzone");
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("myzone"))).thenReturn(identityZone);
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("not_a_zone"))).thenThrow(new EmptyResultDataAccessException(1));
+
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setServerName("myzone.uaa.mycf.com");
+            filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+            request = new MockHttpServletRequest();
+            request.setServerName("not_a_zone.uaa.mycf.com");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(request, response, new MockFilterChain());
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+        }
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain(Mockito.eq("myzone"));
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain(Mockito.eq("not_a_zone"));
+
+        filter.onApplicationEvent(IdentityZoneModifiedEvent.identityZoneModified(identityZone));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServerName("myzone.uaa.mycf.com");
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Mockito.verify(dao, Mockito.times(2)).retrieveBySubdomain(Mockito.eq("myzone"));
+    }
+
 }
@@ -179,6 +179,67 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         assertEquals(idp.getOriginKey(), retrievedIdp.getOriginKey());
     }
 
+    @Test
+    public void testCachedRetrieveByOrigin() throws Exception {
+        db.setCacheRefreshIntervalSeconds(60);
+        IdentityZone zone = MultitenancyFixture.identityZone(UUID.randomUUID().toString(), "myzone");
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = db.create(MultitenancyFixture.identityProvider(originKey, zone.getId()));
+
+        IdentityProvider retrieved = db.retrieveByOrigin(originKey, zone.getId());
+        retrieved.setActive(false);
+        assertTrue(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        assertEquals(1, db.getCacheMissCount());
+        assertEquals(1, db.getCacheHitCount());
+        try {
+            db.retrieveByOrigin("unknown", zone.getId());
+            fail("Expected EmptyResultDataAccessException");
+        } catch (EmptyResultDataAccessException e) {
+            // expected
+        }
+
+        idp.setActive(false);
+        db.update(idp);
+        assertFalse(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        assertEquals(0, db.retrieveAll(zone.getId()).size());
+        assertEquals(1, db.retrieveAll(false, zone.getId()).size());
+        assertEquals(2, db.getCacheMissCount());
+    }
+
+    @Test
+    public void testCacheSeesChangesFromOtherServers() throws Exception {
+        db.setCacheRefreshIntervalSeconds(1);
+        IdentityZone zone = MultitenancyFixture.identityZone(UUID.randomUUID().toString(), "myzone");
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        db.create(MultitenancyFixture.identityProvider(originKey, zone.getId()));
+        assertTrue(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+
+        jdbcTemplate.update("update identity_provider set active=?, lastModified=? where origin_key=?", false,
+                        new Timestamp(System.currentTimeMillis() + 1000), originKey);
+        assertTrue(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        Thread.sleep(1100);
+        assertFalse(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        assertEquals(1, db.getCacheRefreshCount());
+        // unchanged since then
+        Thread.sleep(1100);
+        assertFalse(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        assertEquals(1, db.getCacheRefreshCount());
+    }
+
+    @Test
+    public void testCacheSeesUpdatesWithTheSameModificationTime() throws Exception {
+        db.setCacheRefreshIntervalSeconds(1);
+        IdentityZone zone = MultitenancyFixture.identityZone(UUID.randomUUID().toString(), "myzone");
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        db.create(MultitenancyFixture.identityProvider(originKey, zone.getId()));
+        assertTrue(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+
+        jdbcTemplate.update("update identity_provider set active=?, version=version+1 where origin_key=?", false, originKey);
+        Thread.sleep(1100);
+        assertFalse(db.retrieveByOrigin(originKey, zone.getId()).isActive());
+        assertEquals(1, db.getCacheRefreshCount());
+    }
+
     @Test
     public void testRetrieveAll() throws Exception {
         String uaaZoneId = IdentityZone.getUaa().getId();
@@ -12,6 +12,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 
+import org.cloudfoundry.identity.uaa.oauth.event.ClientDeleteEvent;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -19,6 +20,7 @@ import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.provider.ClientAlreadyExistsException;
@@ -352,4 +354,81 @@ public class MultitenantJdbcClientDetailsServiceTests {
         assertEquals(IdentityZone.getUaa().getId(), identityZoneId.trim());
     }
 
+    @Test
+    public void testCachedClientIsReturnedUntilItChanges() {
+        service.setCacheMaxAgeSeconds(60);
+        jdbcTemplate.update(INSERT_SQL, "cachedClient", null, null, "read", null, null, null, null, null, null,
+                        IdentityZoneHolder.get().getId());
+        service.loadClientByClientId("cachedClient");
+        jdbcTemplate.update("update oauth_client_details set scope='write' where client_id='cachedClient'");
+        assertEquals(Collections.singleton("read"), service.loadClientByClientId("cachedClient").getScope());
+        assertEquals(1, service.getCacheHitCount());
+        assertEquals(1, service.getCacheMissCount());
+
+        BaseClientDetails client = new BaseClientDetails("cachedClient", null, "admin", null, null);
+        service.updateClientDetails(client);
+        assertEquals(Collections.singleton("admin"), service.loadClientByClientId("cachedClient").getScope());
+    }
+
+    @Test
+    public void testClientLoadedDuringAnUpdateIsNotCached() {
+        service.setCacheMaxAgeSeconds(60);
+        jdbcTemplate.update(INSERT_SQL, "cachedClient", null, "old", "read", null, null, null, null, null, null,
+                        IdentityZoneHolder.get().getId());
+        service.setPasswordEncoder(new PasswordEncoder() {
+            @Override
+            public String encode(CharSequence rawPassword) {
+                // another request loads the client before the new secret is written
+                service.loadClientByClientId("cachedClient");
+                return rawPassword.toString();
+            }
+
+            @Override
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                return rawPassword.toString().equals(encodedPassword);
+            }
+        });
+        service.updateClientSecret("cachedClient", "new");
+        assertEquals("new", service.loadClientByClientId("cachedClient").getClientSecret());
+    }
+
+    @Test
+    public void testCachedClientCannotBeModifiedByCaller() {
+        service.setCacheMaxAgeSeconds(60);
+        jdbcTemplate.update(INSERT_SQL, "cachedClient", null, null, "read", null, null, null, null, null, null,
+                        IdentityZoneHolder.get().getId());
+        ((BaseClientDetails) service.loadClientByClientId("cachedClient")).setScope(Collections.singleton("write"));
+        assertEquals(Collections.singleton("read"), service.loadClientByClientId("cachedClient").getScope());
+    }
+
+    @Test
+    public void testClientIsCachedPerZone() {
+        service.setCacheMaxAgeSeconds(60);
+        jdbcTemplate.update(INSERT_SQL, "cachedClient", null, null, "read", null, null, null, null, null, null,
+                        IdentityZoneHolder.get().getId());
+        service.loadClientByClientId("cachedClient");
+        IdentityZoneHolder.set(otherIdentityZone);
+        try {
+            service.loadClientByClientId("cachedClient");
+            Assert.fail();
+        } catch (NoSuchClientException e) {
+        }
+    }
+
+    @Test
+    public void testClientAdminEventEvictsCachedClient() {
+        service.setCacheMaxAgeSeconds(60);
+        jdbcTemplate.update(INSERT_SQL, "cachedClient", null, null, "read", null, null, null, null, null, null,
+                        IdentityZoneHolder.get().getId());
+        ClientDetails client = service.loadClientByClientId("cachedClient");
+        jdbcTemplate.update("delete from oauth_client_details where client_id='cachedClient'");
+        service.onApplicationEvent(new ClientDeleteEvent(client, new UsernamePasswordAuthenticationToken("admin", null)));
+        assertEquals(0, service.getCacheSize());
+        try {
+            service.loadClientByClientId("cachedClient");
+            Assert.fail();
+        } catch (NoSuchClientException e) {
+        }
+    }
+
 }
@@ -17,6 +17,7 @@ import java.security.Principal;
 
 import org.cloudfoundry.identity.uaa.audit.AuditEvent;
 import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.event.UserPasswordChangedEvent;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.springframework.security.core.Authentication;
 
@@ -24,12 +25,17 @@ import org.springframework.security.core.Authentication;
  * @author Dave Syer
  * 
  */
-public class PasswordChangeEvent extends AbstractPasswordChangeEvent {
+public class PasswordChangeEvent extends AbstractPasswordChangeEvent implements UserPasswordChangedEvent {
 
     public PasswordChangeEvent(String message, UaaUser user, Authentication principal) {
         super(message, user, principal);
     }
 
+    @Override
+    public String getUserId() {
+        return getUser().getId();
+    }
+
     @Override
     public AuditEvent getAuditEvent() {
         return createAuditRecord(getUser().getId(), AuditEventType.PasswordChangeSuccess,
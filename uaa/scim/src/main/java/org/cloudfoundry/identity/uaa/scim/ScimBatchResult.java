@@ -0,0 +1,52 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim;
+
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+
+/**
+ * The outcome of one item of a batch operation: either the resource that was
+ * saved, or the reason it wasn't.
+ */
+public class ScimBatchResult<T> {
+
+    private final T resource;
+
+    private final ScimException error;
+
+    private ScimBatchResult(T resource, ScimException error) {
+        this.resource = resource;
+        this.error = error;
+    }
+
+    public static <T> ScimBatchResult<T> success(T resource) {
+        return new ScimBatchResult<T>(resource, null);
+    }
+
+    public static <T> ScimBatchResult<T> failure(ScimException error) {
+        return new ScimBatchResult<T>(null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public T getResource() {
+        return resource;
+    }
+
+    public ScimException getError() {
+        return error;
+    }
+
+}
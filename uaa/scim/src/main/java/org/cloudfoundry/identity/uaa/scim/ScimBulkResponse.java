@@ -0,0 +1,49 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * The response to a SCIM bulk request: the result of each operation, in the
+ * order they were requested.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ScimBulkResponse {
+
+    private String[] schemas = ScimCore.SCHEMAS;
+
+    @JsonProperty("Operations")
+    private List<ScimBulkOperation> operations = new ArrayList<ScimBulkOperation>();
+
+    public String[] getSchemas() {
+        return schemas;
+    }
+
+    public void setSchemas(String[] schemas) {
+        this.schemas = schemas;
+    }
+
+    public List<ScimBulkOperation> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<ScimBulkOperation> operations) {
+        this.operations = operations;
+    }
+
+}
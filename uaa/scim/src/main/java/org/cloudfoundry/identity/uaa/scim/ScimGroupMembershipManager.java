@@ -12,7 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.cloudfoundry.identity.uaa.rest.Queryable;
@@ -66,6 +68,37 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve all groups that each of the given members belongs to. The
+     * result for each member is the same as that of
+     * {@link #getGroupsWithMember(String, boolean)}, but the members are
+     * resolved together instead of one at a time.
+     * 
+     * @param memberIds
+     * @param transitive true means indirect/transitive membership is also
+     *            processed (nested groups)
+     * @return the groups of each member, keyed by member id
+     */
+    Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive);
+
+    /**
+     * Bring the memberships of a user that come from an origin in line with
+     * the given groups: the user is added to the groups they are not a member
+     * of yet, and (if <code>removeOthers</code>) removed from the other groups
+     * they are a member of through that origin. Memberships in the given
+     * groups that come from another origin are left alone. The current
+     * memberships are read with one query and the changes are applied in
+     * batches.
+     * 
+     * @param memberId the id of an existing user
+     * @param origin the origin of the memberships
+     * @param groupIds ids of existing groups
+     * @param removeOthers whether memberships of the origin in other groups
+     *            are revoked
+     * @return true if any membership was added or revoked
+     */
+    boolean syncMemberships(String memberId, String origin, Collection<String> groupIds, boolean removeOthers);
+
     /**
      * Retrieve a particular member's membership details
      * 
@@ -12,8 +12,21 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 
 public interface ScimGroupProvisioning extends ResourceManager<ScimGroup>, Queryable<ScimGroup> {
+
+    /**
+     * Retrieve the groups with any of the given display names, compared
+     * ignoring case (as in a <code>displayName eq</code> query), with one
+     * query instead of one per name.
+     * 
+     * @param displayNames
+     * @return the groups found, in no particular order
+     */
+    List<ScimGroup> retrieveByNames(Collection<String> displayNames);
 }
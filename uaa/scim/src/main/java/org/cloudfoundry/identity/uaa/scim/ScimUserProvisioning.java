@@ -12,6 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.List;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
@@ -27,6 +29,17 @@ public interface ScimUserProvisioning extends ResourceManager<ScimUser>, Queryab
     public ScimUser createUser(ScimUser user, String password) throws InvalidPasswordException,
                     InvalidScimResourceException;
 
+    /**
+     * Create a batch of users. Each user is validated and saved on its own, so
+     * one that can't be created doesn't stop the others.
+     *
+     * @param users the users to create
+     * @param passwords the (unencoded) password of each user, in the same
+     *            order
+     * @return the outcome for each user, in the same order
+     */
+    public List<ScimBatchResult<ScimUser>> createUsers(List<ScimUser> users, List<String> passwords);
+
     public void changePassword(String id, String oldPassword, String newPassword)
                     throws ScimResourceNotFoundException;
 
@@ -15,7 +15,11 @@ package org.cloudfoundry.identity.uaa.scim.bootstrap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -36,6 +40,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationListener;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
 /**
@@ -156,22 +161,72 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
     public void onApplicationEvent(NewUserAuthenticatedEvent event) {
         if (event instanceof ExternalGroupAuthorizationEvent) {
             ExternalGroupAuthorizationEvent exEvent = (ExternalGroupAuthorizationEvent)event;
-            //delete previous membership relation ships
             String origin = exEvent.getUser().getOrigin();
-            if (!Origin.UAA.equals(origin)) {//only delete non UAA relationships
-                membershipManager.delete("member_id eq \""+event.getUser().getId()+"\" and origin eq \""+origin+"\"");
-            }
-            for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
-                addToGroup(exEvent.getUser().getId(), authority.getAuthority(), exEvent.getUser().getOrigin(), exEvent.isAddGroups());
-            }
-            //update the user itself
+            Set<String> groupIds = getGroupIds(exEvent.getExternalAuthorities(), exEvent.isAddGroups());
+            //only remove non UAA relationships
+            membershipManager.syncMemberships(exEvent.getUser().getId(), origin, groupIds, !Origin.UAA.equals(origin));
+            //update the user itself, if it changed
             ScimUser user = getScimUser(event.getUser());
-            updateUser(user, event.getUser(), false);
+            if (isUpToDate(user, event.getUser())) {
+                logger.debug("User account " + user.getId() + " is up to date");
+            } else {
+                updateUser(user, event.getUser(), false);
+            }
         } else {
             addUser(event.getUser());
         }
     }
 
+    /**
+     * Look up the groups named by some authorities with one query, creating
+     * the ones that don't exist if <code>addGroups</code> is set.
+     */
+    private Set<String> getGroupIds(Collection<? extends GrantedAuthority> authorities, boolean addGroups) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (GrantedAuthority authority : authorities) {
+            if (StringUtils.hasText(authority.getAuthority())) {
+                names.add(authority.getAuthority());
+            }
+        }
+        Map<String, String> idsByName = new HashMap<String, String>();
+        for (ScimGroup group : scimGroupProvisioning.retrieveByNames(names)) {
+            idsByName.put(group.getDisplayName().toLowerCase(Locale.ENGLISH), group.getId());
+        }
+        Set<String> groupIds = new LinkedHashSet<String>();
+        for (String name : names) {
+            String id = idsByName.get(name.toLowerCase(Locale.ENGLISH));
+            if (id == null && !addGroups) {
+                logger.debug("No group found with name:"+name+". Group membership will not be added.");
+                continue;
+            } else if (id == null) {
+                id = scimGroupProvisioning.create(new ScimGroup(name)).getId();
+                idsByName.put(name.toLowerCase(Locale.ENGLISH), id);
+            }
+            groupIds.add(id);
+        }
+        return groupIds;
+    }
+
+    /**
+     * @return true if updating the SCIM user from the UaaUser would not
+     *         change it
+     */
+    private boolean isUpToDate(ScimUser existing, UaaUser user) {
+        ScimUser updated = convertToScimUser(user);
+        // the same defaults as ScimUserProvisioning.update()
+        String origin = StringUtils.hasText(updated.getOrigin()) ? updated.getOrigin() : Origin.UAA;
+        String externalId = StringUtils.hasText(updated.getExternalId()) ? updated.getExternalId() : null;
+        return ObjectUtils.nullSafeEquals(existing.getUserName(), updated.getUserName())
+                        && ObjectUtils.nullSafeEquals(existing.getGivenName(), updated.getGivenName())
+                        && ObjectUtils.nullSafeEquals(existing.getFamilyName(), updated.getFamilyName())
+                        && ObjectUtils.nullSafeEquals(existing.getPrimaryEmail(), updated.getPrimaryEmail())
+                        && ObjectUtils.nullSafeEquals(existing.getOrigin(), origin)
+                        && ObjectUtils.nullSafeEquals(existing.getExternalId(), externalId)
+                        && existing.isVerified() == updated.isVerified()
+                        && existing.isActive() == updated.isActive()
+                        && (existing.getPhoneNumbers() == null || existing.getPhoneNumbers().isEmpty());
+    }
+
     private void addToGroup(String scimUserId, String gName) {
         addToGroup(scimUserId,gName,Origin.UAA, true);
     }
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimExporter;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Streams the users, groups, memberships and approvals of the current
+ * identity zone as newline delimited JSON (see {@link JdbcScimExporter}).
+ */
+@Controller
+public class ScimExportEndpoints {
+
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private final JdbcScimExporter exporter;
+
+    public ScimExportEndpoints(JdbcScimExporter exporter) {
+        Assert.notNull(exporter, "exporter must not be null");
+        this.exporter = exporter;
+    }
+
+    /**
+     * @param since only export records modified at or after this time, in
+     *            milliseconds since the epoch (optional)
+     */
+    @RequestMapping(value = "/Export", method = RequestMethod.GET)
+    public void export(@RequestParam(value = "since", required = false) Long since, HttpServletResponse response)
+                    throws IOException {
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        exporter.export(IdentityZoneHolder.get().getId(), since == null ? null : new Date(since),
+                        response.getOutputStream());
+    }
+}
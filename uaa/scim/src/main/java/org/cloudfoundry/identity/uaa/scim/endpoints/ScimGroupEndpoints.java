@@ -16,6 +16,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
 import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
@@ -141,6 +142,17 @@ public class ScimGroupEndpoints {
         return response;
     }
 
+    public SearchResults<?> listGroups(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) {
+        return listGroups(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * List groups a page at a time. With a <code>cursor</code> (empty for the
+     * first page) the page is found by seeking on the sort key instead of
+     * counting and skipping, the response carries a <code>nextCursor</code>
+     * while there are more results, and the total is reported as -1.
+     */
     @RequestMapping(value = { "/Groups" }, method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listGroups(
@@ -149,11 +161,24 @@ public class ScimGroupEndpoints {
                     @RequestParam(required = false, defaultValue = "created") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
         List<ScimGroup> result;
+        // the total is not computed when paging with a cursor
+        int total = -1;
+        String nextCursor = null;
         try {
-            result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+            if (cursor != null) {
+                startIndex = 1;
+                KeysetPage<ScimGroup> page = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder), cursor,
+                                count);
+                result = page.getResources();
+                nextCursor = page.getNextCursor();
+            } else {
+                result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+                total = result.size();
+            }
         } catch (IllegalArgumentException e) {
             throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
         }
@@ -163,14 +188,18 @@ public class ScimGroupEndpoints {
                         : filterForCurrentUser(result, startIndex, count, null);
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
-            return new SearchResults<ScimGroup>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
-                            result.size());
+            SearchResults<ScimGroup> results = new SearchResults<ScimGroup>(Arrays.asList(ScimCore.SCHEMAS), input,
+                            startIndex, count, total);
+            results.setNextCursor(nextCursor);
+            return results;
         }
 
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            Arrays.asList(ScimCore.SCHEMAS));
+            SearchResults<?> results = SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, total,
+                            attributes, Arrays.asList(ScimCore.SCHEMAS));
+            results.setNextCursor(nextCursor);
+            return results;
         } catch (ExpressionException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,10 +34,15 @@ import org.cloudfoundry.identity.uaa.error.ExceptionReport;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.scim.ScimBatchResult;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkOperation;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkRequest;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkResponse;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
@@ -105,6 +111,8 @@ public class ScimUserEndpoints implements InitializingBean {
 
     private AtomicInteger scimDeletes = new AtomicInteger();
 
+    private int maxBulkOperations = 1000;
+
     private Map<Class<? extends Exception>, HttpStatus> statuses = new HashMap<Class<? extends Exception>, HttpStatus>();
 
     private HttpMessageConverter<?>[] messageConverters = new RestTemplate().getMessageConverters().toArray(
@@ -129,6 +137,14 @@ public class ScimUserEndpoints implements InitializingBean {
         this.statuses = statuses;
     }
 
+    /**
+     * @param maxBulkOperations the maximum number of operations in one bulk
+     *            request (default 1000)
+     */
+    public void setMaxBulkOperations(int maxBulkOperations) {
+        this.maxBulkOperations = maxBulkOperations;
+    }
+
     private static String generatePassword() {
         byte[] bytes = new byte[16];
         passwordGenerator.nextBytes(bytes);
@@ -179,6 +195,73 @@ public class ScimUserEndpoints implements InitializingBean {
         return scimUser;
     }
 
+    /**
+     * SCIM bulk endpoint. Only <code>POST /Users</code> operations are
+     * supported: the users are created together, and each operation reports
+     * its own status.
+     */
+    @RequestMapping(value = "/Bulk", method = RequestMethod.POST)
+    @ResponseBody
+    public ScimBulkResponse bulk(@RequestBody ScimBulkRequest request) {
+        List<ScimBulkOperation> operations = request.getOperations();
+        if (operations.size() > maxBulkOperations) {
+            throw new ScimException("Too many operations: at most " + maxBulkOperations + " are allowed",
+                            HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+        ScimBulkResponse response = new ScimBulkResponse();
+        List<ScimBulkOperation> results = response.getOperations();
+        List<Integer> creates = new ArrayList<Integer>();
+        List<ScimUser> users = new ArrayList<ScimUser>();
+        List<String> passwords = new ArrayList<String>();
+        for (int i = 0; i < operations.size(); i++) {
+            ScimBulkOperation operation = operations.get(i);
+            ScimBulkOperation result = new ScimBulkOperation();
+            result.setMethod(operation.getMethod());
+            result.setBulkId(operation.getBulkId());
+            results.add(result);
+            if ("POST".equalsIgnoreCase(operation.getMethod()) && "/Users".equals(operation.getPath())
+                            && operation.getData() != null) {
+                ScimUser user = operation.getData();
+                creates.add(i);
+                users.add(user);
+                passwords.add(user.getPassword() == null ? generatePassword() : user.getPassword());
+            }
+            else {
+                setStatus(result, new ScimException("Only POST operations on /Users are supported",
+                                HttpStatus.BAD_REQUEST));
+            }
+        }
+        List<ScimBatchResult<ScimUser>> created = users.isEmpty() ? Collections.<ScimBatchResult<ScimUser>> emptyList()
+                        : dao.createUsers(users, passwords);
+        for (int j = 0; j < created.size(); j++) {
+            ScimBulkOperation result = results.get(creates.get(j));
+            ScimBatchResult<ScimUser> outcome = created.get(j);
+            if (!outcome.isSuccess()) {
+                incrementErrorCounts(outcome.getError());
+                setStatus(result, outcome.getError());
+                continue;
+            }
+            ScimUser scimUser = outcome.getResource();
+            if (users.get(j).getApprovals() != null) {
+                for (Approval approval : users.get(j).getApprovals()) {
+                    approval.setUserId(scimUser.getId());
+                    approvalStore.addApproval(approval);
+                }
+            }
+            result.setLocation("/Users/" + scimUser.getId());
+            result.setVersion("\"" + scimUser.getVersion() + "\"");
+            result.setStatus(Collections.singletonMap("code", String.valueOf(HttpStatus.CREATED.value())));
+        }
+        return response;
+    }
+
+    private void setStatus(ScimBulkOperation result, ScimException e) {
+        Map<String, String> status = new HashMap<String, String>();
+        status.put("code", String.valueOf(e.getStatus().value()));
+        status.put("description", e.getMessage());
+        result.setStatus(status);
+    }
+
     @RequestMapping(value = "/Users/{userId}", method = RequestMethod.PUT)
     @ResponseBody
     public ScimUser updateUser(@RequestBody ScimUser user, @PathVariable String userId,
@@ -244,6 +327,17 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
+    public SearchResults<?> findUsers(String attributesCommaSeparated, String filter, String sortBy, String sortOrder,
+                    int startIndex, int count) {
+        return findUsers(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * List users a page at a time. With a <code>cursor</code> (empty for the
+     * first page) the page is found by seeking on the sort key instead of
+     * counting and skipping, the response carries a <code>nextCursor</code>
+     * while there are more results, and the total is reported as -1.
+     */
     @RequestMapping(value = "/Users", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -252,24 +346,33 @@ public class ScimUserEndpoints implements InitializingBean {
                     @RequestParam(required = false) String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
         if (startIndex < 1) {
             startIndex = 1;
         }
 
         List<ScimUser> input = new ArrayList<ScimUser>();
-        List<ScimUser> result;
+        // the total is not computed when paging with a cursor
+        int total = -1;
+        String nextCursor = null;
         try {
-            result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
-            for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
-                    syncGroups(user);
-                }
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
-                    syncApprovals(user);
-                }
-                input.add(user);
+            if (cursor != null) {
+                startIndex = 1;
+                KeysetPage<ScimUser> page = dao.query(filter, sortBy, sortOrder.equals("ascending"), cursor, count);
+                input.addAll(page.getResources());
+                nextCursor = page.getNextCursor();
+            } else {
+                List<ScimUser> result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
+                input.addAll(UaaPagingUtils.subList(result, startIndex, count));
+                total = result.size();
+            }
+            if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
+                syncGroups(input);
+            }
+            if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
+                syncApprovals(input);
             }
         } catch (IllegalArgumentException e) {
             throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
@@ -277,15 +380,20 @@ public class ScimUserEndpoints implements InitializingBean {
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             // Return all user data
-            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, result.size());
+            SearchResults<ScimUser> results = new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input,
+                            startIndex, count, total);
+            results.setNextCursor(nextCursor);
+            return results;
         }
 
         AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap(
                         "emails\\.(.*)", "emails.![$1]"));
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            mapper, Arrays.asList(ScimCore.SCHEMAS));
+            SearchResults<?> results = SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, total,
+                            attributes, mapper, Arrays.asList(ScimCore.SCHEMAS));
+            results.setNextCursor(nextCursor);
+            return results;
         } catch (SpelParseException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         } catch (SpelEvaluationException e) {
@@ -300,33 +408,75 @@ public class ScimUserEndpoints implements InitializingBean {
 
         Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false);
         Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(), true);
-        indirectGroups.removeAll(directGroups);
+        setGroups(user, directGroups, indirectGroups);
+        return user;
+    }
+
+    private void syncGroups(List<ScimUser> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        List<String> userIds = getIds(users);
+        Map<String, Set<ScimGroup>> directGroups = membershipManager.getGroupsWithMembers(userIds, false);
+        Map<String, Set<ScimGroup>> indirectGroups = membershipManager.getGroupsWithMembers(userIds, true);
+        for (ScimUser user : users) {
+            setGroups(user, directGroups.get(user.getId()), indirectGroups.get(user.getId()));
+        }
+    }
+
+    private void setGroups(ScimUser user, Set<ScimGroup> directGroups, Set<ScimGroup> indirectGroups) {
         Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
+        if (directGroups == null) {
+            directGroups = Collections.emptySet();
+        }
         for (ScimGroup group : directGroups) {
             groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
         }
-        for (ScimGroup group : indirectGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+        if (indirectGroups != null) {
+            for (ScimGroup group : indirectGroups) {
+                if (!directGroups.contains(group)) {
+                    groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+                }
+            }
         }
-
         user.setGroups(groups);
-        return user;
     }
 
     private ScimUser syncApprovals(ScimUser user) {
         if (user == null || approvalStore == null) {
             return user;
         }
-        Set<Approval> approvals = new HashSet<Approval>(
-            approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
-        Set<Approval> active = new HashSet<Approval>(approvals);
+        setApprovals(user, approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
+        return user;
+    }
+
+    private void syncApprovals(List<ScimUser> users) {
+        if (users.isEmpty() || approvalStore == null) {
+            return;
+        }
+        Map<String, List<Approval>> approvals = approvalStore.getApprovalsForUsers(getIds(users));
+        for (ScimUser user : users) {
+            List<Approval> userApprovals = approvals.get(user.getId());
+            setApprovals(user, userApprovals == null ? Collections.<Approval> emptyList() : userApprovals);
+        }
+    }
+
+    private void setApprovals(ScimUser user, Collection<Approval> approvals) {
+        Set<Approval> active = new HashSet<Approval>();
         for (Approval approval : approvals) {
-            if (!approval.isCurrentlyActive()) {
-                active.remove(approval);
+            if (approval.isCurrentlyActive()) {
+                active.add(approval);
             }
         }
         user.setApprovals(active);
-        return user;
+    }
+
+    private List<String> getIds(List<ScimUser> users) {
+        List<String> ids = new ArrayList<String>();
+        for (ScimUser user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
     }
 
     @ExceptionHandler
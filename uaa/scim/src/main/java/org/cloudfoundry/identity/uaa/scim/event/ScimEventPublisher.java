@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.scim.event;
 
 import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
 import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.scim.ScimBatchResult;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
@@ -36,6 +37,14 @@ public class ScimEventPublisher implements ApplicationEventPublisherAware {
         publish(UserModifiedEvent.userCreated(user.getId(), user.getUserName()));
     }
 
+    public void usersCreated(List<ScimBatchResult<ScimUser>> results) {
+        for (ScimBatchResult<ScimUser> result : results) {
+            if (result.isSuccess()) {
+                userCreated(result.getResource());
+            }
+        }
+    }
+
     public void userVerified(ScimUser user) {
         publish(UserModifiedEvent.userVerified(user.getId(), user.getUserName()));
     }
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Writes the users, groups, group memberships and approvals of an identity
+ * zone as newline delimited JSON, one record per line, each with a
+ * <code>type</code> of <code>user</code>, <code>group</code>,
+ * <code>membership</code> or <code>approval</code>.
+ * <p>
+ * The tables are read with forward-only cursors and every row is written as
+ * soon as it is read, so the memory used doesn't depend on the number of
+ * users. The queries run in a read-only transaction, which some drivers
+ * (e.g. PostgreSQL) need to honour the fetch size. Password hashes are not
+ * exported.
+ * <p>
+ * Groups are shared by all zones, so they are always exported. An export
+ * can be limited to the rows created or modified since a given time for
+ * incremental syncs, but deletions are not included.
+ */
+public class JdbcScimExporter {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    public static final String EXPORT_USERS_SQL = "select " + JdbcScimUserProvisioning.USER_FIELDS
+                    + " from users where identity_zone_id=? and lastModified>=?";
+
+    public static final String EXPORT_GROUPS_SQL = "select " + JdbcScimGroupProvisioning.GROUP_FIELDS
+                    + " from groups where lastModified>=?";
+
+    public static final String EXPORT_MEMBERSHIPS_SQL = "select "
+                    + JdbcScimGroupMembershipManager.MEMBERSHIP_FIELDS
+                    + " from group_membership where added>=? and (member_type<>? or member_id in "
+                    + "(select id from users where identity_zone_id=?))";
+
+    public static final String EXPORT_APPROVALS_SQL = "select user_id,client_id,scope,expiresAt,status,lastModifiedAt"
+                    + " from authz_approvals where lastModifiedAt>=? and user_id in "
+                    + "(select id from users where identity_zone_id=?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public JdbcScimExporter(JdbcTemplate jdbcTemplate) {
+        Assert.notNull(jdbcTemplate);
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(500);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(
+                        jdbcTemplate.getDataSource()));
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    /**
+     * @param fetchSize the number of rows the driver reads from the database
+     *            at a time (default 500). MySQL only honours it with
+     *            <code>useCursorFetch=true</code> in the connection URL.
+     */
+    public void setFetchSize(int fetchSize) {
+        jdbcTemplate.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Writes the records of a zone to a stream. The stream is flushed but not
+     * closed.
+     *
+     * @param zoneId the identity zone to export
+     * @param since only export rows modified at or after this time (may be
+     *            null to export everything)
+     * @param out the stream to write to
+     * @return the number of records written
+     */
+    public long export(final String zoneId, Date since, OutputStream out) throws IOException {
+        Assert.hasText(zoneId, "zoneId must not be empty");
+        final Timestamp modifiedSince = new Timestamp(since == null ? 0 : since.getTime());
+        final RecordWriter writer = new RecordWriter(new BufferedOutputStream(out, 8192));
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    jdbcTemplate.query(EXPORT_USERS_SQL, new UserWriter(writer), zoneId, modifiedSince);
+                    jdbcTemplate.query(EXPORT_GROUPS_SQL, new GroupWriter(writer), modifiedSince);
+                    jdbcTemplate.query(EXPORT_MEMBERSHIPS_SQL, new MembershipWriter(writer), modifiedSince,
+                                    ScimGroupMember.Type.USER.toString(), zoneId);
+                    jdbcTemplate.query(EXPORT_APPROVALS_SQL, new ApprovalWriter(writer), modifiedSince, zoneId);
+                }
+            });
+        } catch (ExportFailedException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+        logger.debug("Exported " + writer.count + " records from zone " + zoneId);
+        return writer.count;
+    }
+
+    private static final class RecordWriter {
+
+        private final OutputStream out;
+
+        private final Map<String, Object> record = new LinkedHashMap<String, Object>();
+
+        private long count = 0;
+
+        private RecordWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        private Map<String, Object> start(String type) {
+            record.clear();
+            record.put("type", type);
+            return record;
+        }
+
+        private void write() {
+            try {
+                out.write(JsonUtils.writeValueAsBytes(record));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new ExportFailedException(e);
+            }
+            count++;
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static final class UserWriter implements RowCallbackHandler {
+
+        private final RecordWriter writer;
+
+        private UserWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            Map<String, Object> record = writer.start("user");
+            record.put("id", rs.getString("id"));
+            record.put("version", rs.getInt("version"));
+            record.put("created", rs.getTimestamp("created"));
+            record.put("lastModified", rs.getTimestamp("lastModified"));
+            record.put("userName", rs.getString("username"));
+            record.put("email", rs.getString("email"));
+            record.put("givenName", rs.getString("givenName"));
+            record.put("familyName", rs.getString("familyName"));
+            record.put("active", rs.getBoolean("active"));
+            record.put("phoneNumber", rs.getString("phoneNumber"));
+            record.put("verified", rs.getBoolean("verified"));
+            record.put("origin", rs.getString("origin"));
+            record.put("externalId", rs.getString("external_id"));
+            record.put("zoneId", rs.getString("identity_zone_id"));
+            writer.write();
+        }
+    }
+
+    private static final class GroupWriter implements RowCallbackHandler {
+
+        private final RecordWriter writer;
+
+        private GroupWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            Map<String, Object> record = writer.start("group");
+            record.put("id", rs.getString("id"));
+            record.put("displayName", rs.getString("displayName"));
+            record.put("created", rs.getTimestamp("created"));
+            record.put("lastModified", rs.getTimestamp("lastModified"));
+            record.put("version", rs.getInt("version"));
+            writer.write();
+        }
+    }
+
+    private static final class MembershipWriter implements RowCallbackHandler {
+
+        private final RecordWriter writer;
+
+        private MembershipWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            Map<String, Object> record = writer.start("membership");
+            record.put("groupId", rs.getString("group_id"));
+            record.put("memberId", rs.getString("member_id"));
+            record.put("memberType", rs.getString("member_type"));
+            record.put("authorities", rs.getString("authorities"));
+            record.put("added", rs.getTimestamp("added"));
+            record.put("origin", rs.getString("origin"));
+            writer.write();
+        }
+    }
+
+    private static final class ApprovalWriter implements RowCallbackHandler {
+
+        private final RecordWriter writer;
+
+        private ApprovalWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            Map<String, Object> record = writer.start("approval");
+            record.put("userId", rs.getString("user_id"));
+            record.put("clientId", rs.getString("client_id"));
+            record.put("scope", rs.getString("scope"));
+            record.put("expiresAt", rs.getTimestamp("expiresAt"));
+            record.put("status", rs.getString("status"));
+            record.put("lastModifiedAt", rs.getTimestamp("lastModifiedAt"));
+            writer.write();
+        }
+    }
+
+    /**
+     * Carries an {@link IOException} out of the row callbacks.
+     */
+    private static final class ExportFailedException extends RuntimeException {
+
+        private ExportFailedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -24,21 +24,40 @@ import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.cloudfoundry.identity.uaa.util.LoadingCache;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jca.cci.InvalidResultSetAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.util.Assert;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The mappings of external groups can optionally be kept in memory, indexed
+ * by external group (see {@link #setCacheRefreshIntervalSeconds(int)}), so
+ * that mapping the groups of an external user at login doesn't need a query
+ * per group. Changes made on other servers, and renamed or deleted groups,
+ * are noticed by the number of mappings and the latest change to them and
+ * their groups.
+ */
+@ManagedResource
 public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<ScimGroupExternalMember> implements
                 ScimGroupExternalMembershipManager {
 
@@ -89,10 +108,33 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
     public static final String DELETE_EXTERNAL_GROUP_MAPPING_USING_EXTERNAL_GROUPS_SQL = String.format(
                     "delete from %s where lower(external_group)=lower(?)", EXTERNAL_GROUP_MAPPING_TABLE);
 
+    public static final String EXTERNAL_GROUP_MAPPINGS_STATE_SQL =
+        String.format("select count(*),max(gm.added),max(g.lastModified) from %s where %s",
+            JOIN_GROUP_TABLE, JOIN_WHERE_ID);
+
     private final RowMapper<ScimGroupExternalMember> rowMapper = new ScimGroupExternalMemberRowMapper();
 
     private ScimGroupProvisioning scimGroupProvisioning;
 
+    // there is only one index, of all the mappings
+    private static final String INDEX_KEY = "mappings";
+
+    private final LoadingCache<String, MappingIndex> index = new LoadingCache<String, MappingIndex>(
+                    new LoadingCache.Loader<String, MappingIndex>() {
+                        @Override
+                        public MappingIndex load(String key) {
+                            // read the state first, so that a change made during
+                            // the load makes the next check reload again
+                            long[] state = queryState();
+                            return new MappingIndex(state, jdbcTemplate.query(GET_EXTERNAL_GROUP_MAP_SQL, rowMapper));
+                        }
+
+                        @Override
+                        public boolean isCurrent(String key, MappingIndex value) {
+                            return Arrays.equals(queryState(), value.state);
+                        }
+                    });
+
     public JdbcScimGroupExternalMembershipManager(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
         super(jdbcTemplate, pagingListFactory, new ScimGroupExternalMemberRowMapper());
         Assert.notNull(jdbcTemplate);
@@ -100,6 +142,15 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
+    /**
+     * @param cacheRefreshIntervalSeconds the time the in-memory index of
+     *            mappings is trusted before it is checked for changes
+     *            (default 0, which disables the index)
+     */
+    public void setCacheRefreshIntervalSeconds(int cacheRefreshIntervalSeconds) {
+        index.setRefreshIntervalMillis(cacheRefreshIntervalSeconds * 1000l);
+    }
+
     @Override
     protected String getTableName() {
         return EXTERNAL_GROUP_MAPPING_TABLE;
@@ -130,6 +181,7 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                 // group.getDisplayName() + " and external group " +
                 // externalGroup + " already exists");
             }
+            evictIndex();
             return getExternalGroupMap(groupId, externalGroup);
         } else {
             throw new ScimResourceNotFoundException("Group does not exist");
@@ -149,6 +201,9 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                     ps.setString(2, externalGroup);
                 }
             });
+            if (count > 0) {
+                evictIndex();
+            }
             if (count==1) {
                 return result;
             } else if (count==0) {
@@ -192,6 +247,17 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
     @Override
     public List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroup(final String externalGroup)
                     throws ScimResourceNotFoundException {
+        MappingIndex cached = getIndex();
+        if (cached != null) {
+            List<ScimGroupExternalMember> mappings = cached.byExternalGroup.get(externalGroup.toLowerCase(Locale.ENGLISH));
+            List<ScimGroupExternalMember> result = new ArrayList<ScimGroupExternalMember>();
+            if (mappings != null) {
+                for (ScimGroupExternalMember mapping : mappings) {
+                    result.add(copy(mapping));
+                }
+            }
+            return result;
+        }
         return jdbcTemplate.query(GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL, new PreparedStatementSetter() {
             @Override
             public void setValues(PreparedStatement ps) throws SQLException {
@@ -208,6 +274,82 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
             getBaseSqlQuery() + (containsWhereClause ? " and " : " where ") + where.getSql();
     }
 
+    /**
+     * @return the index of all the mappings, loading it if necessary, or null
+     *         if it is disabled
+     */
+    private MappingIndex getIndex() {
+        return index.isEnabled() ? index.get(INDEX_KEY) : null;
+    }
+
+    private long[] queryState() {
+        return jdbcTemplate.queryForObject(EXTERNAL_GROUP_MAPPINGS_STATE_SQL, new RowMapper<long[]>() {
+            @Override
+            public long[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                Timestamp added = rs.getTimestamp(2);
+                Timestamp lastModified = rs.getTimestamp(3);
+                return new long[] {rs.getLong(1), added == null ? 0 : added.getTime(),
+                                lastModified == null ? 0 : lastModified.getTime()};
+            }
+        });
+    }
+
+    private void evictIndex() {
+        index.remove(INDEX_KEY);
+    }
+
+    @ManagedOperation(description = "Remove the in-memory index of external group mappings")
+    public void clearCache() {
+        evictIndex();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "External Group Mapping Cache Size")
+    public int getCacheSize() {
+        MappingIndex cached = index.getIfPresent(INDEX_KEY);
+        return cached == null ? 0 : (int) cached.state[0];
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "External Group Mapping Cache Hit Count")
+    public long getCacheHitCount() {
+        return index.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "External Group Mapping Cache Miss Count")
+    public long getCacheMissCount() {
+        return index.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "External Group Mapping Cache Refresh Count")
+    public long getCacheRefreshCount() {
+        return index.getRefreshCount();
+    }
+
+    private static ScimGroupExternalMember copy(ScimGroupExternalMember mapping) {
+        ScimGroupExternalMember copy = new ScimGroupExternalMember(mapping.getGroupId(), mapping.getExternalGroup());
+        copy.setDisplayName(mapping.getDisplayName());
+        return copy;
+    }
+
+    private static final class MappingIndex {
+
+        private final Map<String, List<ScimGroupExternalMember>> byExternalGroup = new HashMap<String, List<ScimGroupExternalMember>>();
+
+        private final long[] state;
+
+        private MappingIndex(long[] state, List<ScimGroupExternalMember> mappings) {
+            this.state = state;
+            for (ScimGroupExternalMember mapping : mappings) {
+                String key = mapping.getExternalGroup().toLowerCase(Locale.ENGLISH);
+                List<ScimGroupExternalMember> forGroup = byExternalGroup.get(key);
+                if (forGroup == null) {
+                    forGroup = new ArrayList<ScimGroupExternalMember>();
+                    byExternalGroup.put(key, forGroup);
+                }
+                forGroup.add(mapping);
+            }
+        }
+    }
+
     private ScimGroupExternalMember getExternalGroupMap(final String groupId, final String externalGroup)
                     throws ScimResourceNotFoundException {
         try {
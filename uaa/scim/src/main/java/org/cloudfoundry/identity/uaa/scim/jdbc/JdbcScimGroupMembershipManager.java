@@ -16,40 +16,80 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
-public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupMember> implements ScimGroupMembershipManager {
+@ManagedResource
+public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupMember> implements
+                ScimGroupMembershipManager, InitializingBean {
 
     private JdbcTemplate jdbcTemplate;
 
+    private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    // membership changes and the closure rows they imply are committed together
+    private final TransactionTemplate transactionTemplate;
+
+    // closure rows are computed from the memberships read in the transaction,
+    // so concurrent changes must not interleave
+    private final TransactionTemplate serializableTemplate;
+
+    // lets an insert that hits a concurrent one fail without spoiling the
+    // enclosing transaction
+    private final TransactionTemplate savepointTemplate;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     public static final String MEMBERSHIP_FIELDS = "group_id,member_id,member_type,authorities,added,origin";
@@ -68,6 +108,53 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public static final String GET_GROUPS_BY_MEMBER_SQL = String.format(
                     "select distinct(group_id) from %s where member_id=?", MEMBERSHIP_TABLE);
 
+    public static final String GET_MEMBERSHIPS_OF_MEMBER_SQL = String.format(
+                    "select group_id,origin from %s where member_id=?", MEMBERSHIP_TABLE);
+
+    public static final String GET_GROUPS_BY_MEMBERS_SQL = String.format(
+                    "select distinct m.member_id, g.id, g.displayName, g.created, g.lastModified, g.version from %s m join %s g on g.id=m.group_id where m.member_id in (:ids)",
+                    MEMBERSHIP_TABLE, JdbcScimGroupProvisioning.GROUP_TABLE);
+
+    public static final String GET_ANCESTOR_GROUPS_SQL = String.format(
+                    "with recursive ancestors(group_id,depth) as (select group_id, 1 from %1$s where member_id=? union select m.group_id, a.depth+1 from %1$s m join ancestors a on m.member_id=a.group_id where a.depth<?) select g.id, g.displayName, g.created, g.lastModified, g.version, max(a.depth) from %2$s g join ancestors a on g.id=a.group_id group by g.id, g.displayName, g.created, g.lastModified, g.version",
+                    MEMBERSHIP_TABLE, JdbcScimGroupProvisioning.GROUP_TABLE);
+
+    private static final int MAX_RECURSIVE_DEPTH = 16;
+
+    private static final int MAX_CLOSURE_ATTEMPTS = 5;
+
+    public static final String CLOSURE_TABLE = "group_membership_closure";
+
+    public static final String GET_GROUPS_FROM_CLOSURE_SQL = String.format(
+                    "select g.id, g.displayName, g.created, g.lastModified, g.version from %s c join %s g on g.id=c.group_id where c.member_id=?",
+                    CLOSURE_TABLE, JdbcScimGroupProvisioning.GROUP_TABLE);
+
+    public static final String GET_CLOSURE_MEMBERS_SQL = String.format("select member_id from %s where group_id=?",
+                    CLOSURE_TABLE);
+
+    public static final String GET_CLOSURE_MEMBERS_OF_GROUPS_SQL = String.format(
+                    "select distinct member_id from %s where group_id in (:ids)", CLOSURE_TABLE);
+
+    public static final String GET_CLOSURE_SQL = String.format("select member_id, group_id from %s", CLOSURE_TABLE);
+
+    public static final String GET_CLOSURE_FOR_MEMBERS_SQL = GET_CLOSURE_SQL + " where member_id in (:ids)";
+
+    public static final String ADD_CLOSURE_SQL = String.format("insert into %s (member_id, group_id) values (?,?)",
+                    CLOSURE_TABLE);
+
+    public static final String DELETE_CLOSURE_SQL = String.format("delete from %s", CLOSURE_TABLE);
+
+    public static final String DELETE_CLOSURE_FOR_MEMBERS_SQL = DELETE_CLOSURE_SQL + " where member_id in (:ids)";
+
+    public static final String COUNT_CLOSURE_SQL = String.format("select count(*) from %s", CLOSURE_TABLE);
+
+    public static final String GET_ALL_MEMBER_IDS_SQL = String.format("select distinct member_id from %s",
+                    MEMBERSHIP_TABLE);
+
+    public static final String GET_USER_IDS_SQL = "select id from users where id in (:ids)";
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     public static final String GET_MEMBERS_WITH_AUTHORITY_SQL = String.format(
                     "select %s from %s where group_id=? and lower(authorities) like ?", MEMBERSHIP_FIELDS,
                     MEMBERSHIP_TABLE);
@@ -86,12 +173,18 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     private final RowMapper<ScimGroupMember> rowMapper = new ScimGroupMemberRowMapper();
 
+    private final RowMapper<ScimGroup> groupRowMapper = new ScimGroupRowMapper();
+
     private ScimUserProvisioning userProvisioning;
 
     private ScimGroupProvisioning groupProvisioning;
 
     private Set<ScimGroup> defaultUserGroups = new HashSet<ScimGroup>();
 
+    private boolean recursiveQueriesSupported = false;
+
+    private boolean closureTableEnabled = false;
+
     public void setDefaultUserGroups(Set<String> groupNames) {
         for (String name : groupNames) {
             List<ScimGroup> g = groupProvisioning.query(String.format("displayName co \"%s\"", name));
@@ -104,6 +197,29 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         }
     }
 
+    /**
+     * @param recursiveQueriesSupported true if the database understands
+     *            <code>with recursive</code> queries (e.g. HSQLDB and
+     *            PostgreSQL), in which case nested groups are resolved in a
+     *            single query. Otherwise they are resolved one level of
+     *            nesting per query. Default false.
+     */
+    public void setRecursiveQueriesSupported(boolean recursiveQueriesSupported) {
+        this.recursiveQueriesSupported = recursiveQueriesSupported;
+    }
+
+    /**
+     * @param closureTableEnabled true to maintain the
+     *            <code>group_membership_closure</code> table on every change
+     *            of membership, in the same serializable transaction, and to
+     *            look up nested groups from it. If the table is empty when the bean
+     *            starts it is built from the existing memberships. Default
+     *            false.
+     */
+    public void setClosureTableEnabled(boolean closureTableEnabled) {
+        this.closureTableEnabled = closureTableEnabled;
+    }
+
     public void setScimUserProvisioning(ScimUserProvisioning userProvisioning) {
         this.userProvisioning = userProvisioning;
     }
@@ -118,6 +234,20 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         super(jdbcTemplate,pagingListFactory,new ScimGroupMemberRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        PlatformTransactionManager transactionManager = new DataSourceTransactionManager(jdbcTemplate.getDataSource());
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.serializableTemplate = new TransactionTemplate(transactionManager);
+        this.serializableTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE);
+        this.savepointTemplate = new TransactionTemplate(transactionManager);
+        this.savepointTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (closureTableEnabled && jdbcTemplate.queryForObject(COUNT_CLOSURE_SQL, Integer.class) == 0) {
+            rebuildClosure();
+        }
     }
 
     @Override
@@ -125,6 +255,40 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return GET_MEMBERS_SQL;
     }
 
+    @Override
+    public int delete(final String filter) {
+        if (!closureTableEnabled) {
+            return super.delete(filter);
+        }
+        return inTransaction(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                // the members losing a membership, and everything nested in them
+                Set<String> affected = new HashSet<String>(getMemberIds(filter));
+                for (List<String> chunk : chunks(affected)) {
+                    affected.addAll(namedParameterJdbcTemplate.queryForList(GET_CLOSURE_MEMBERS_OF_GROUPS_SQL,
+                                    Collections.singletonMap("ids", chunk), String.class));
+                }
+                int deleted = JdbcScimGroupMembershipManager.super.delete(filter);
+                if (deleted > 0) {
+                    refreshClosure(affected);
+                }
+                return deleted;
+            }
+        });
+    }
+
+    private List<String> getMemberIds(String filter) {
+        SearchQueryConverter.ProcessedFilter where = getQueryConverter().convert(filter, null, false);
+        try {
+            return namedParameterJdbcTemplate.queryForList(String.format("select distinct member_id from %s where %s",
+                            MEMBERSHIP_TABLE, where.getSql()), where.getParams(), String.class);
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid delete filter: " + filter);
+        }
+    }
+
     @Override
     protected String getTableName() {
         return MEMBERSHIP_TABLE;
@@ -138,15 +302,23 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         final String authorities = getGroupAuthorities(member);
         final String type = (member.getType() == null ? ScimGroupMember.Type.USER : member.getType()).toString();
         try {
-            jdbcTemplate.update(ADD_MEMBER_SQL, new PreparedStatementSetter() {
+            inTransaction(new TransactionCallbackWithoutResult() {
                 @Override
-                public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, groupId);
-                    ps.setString(2, member.getMemberId());
-                    ps.setString(3, type);
-                    ps.setString(4, authorities);
-                    ps.setTimestamp(5, new Timestamp(new Date().getTime()));
-                    ps.setString(6, member.getOrigin());
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    jdbcTemplate.update(ADD_MEMBER_SQL, new PreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps) throws SQLException {
+                            ps.setString(1, groupId);
+                            ps.setString(2, member.getMemberId());
+                            ps.setString(3, type);
+                            ps.setString(4, authorities);
+                            ps.setTimestamp(5, new Timestamp(new Date().getTime()));
+                            ps.setString(6, member.getOrigin());
+                        }
+                    });
+                    if (closureTableEnabled) {
+                        addToClosure(groupId, member.getMemberId());
+                    }
                 }
             });
         } catch (DuplicateKeyException e) {
@@ -155,6 +327,88 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return getMemberById(groupId, member.getMemberId());
     }
 
+    @Override
+    public boolean syncMemberships(final String memberId, final String origin, final Collection<String> groupIds,
+                    final boolean removeOthers) {
+        Assert.notNull(origin, "origin cannot be null");
+        return inTransaction(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                return doSyncMemberships(memberId, origin, groupIds, removeOthers);
+            }
+        });
+    }
+
+    private boolean doSyncMemberships(String memberId, String origin, Collection<String> groupIds,
+                    boolean removeOthers) {
+        final Map<String, String> current = new HashMap<String, String>();
+        jdbcTemplate.query(GET_MEMBERSHIPS_OF_MEMBER_SQL, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                current.put(rs.getString(1), rs.getString(2));
+            }
+        }, memberId);
+
+        Set<String> toAdd = new LinkedHashSet<String>(groupIds);
+        toAdd.removeAll(current.keySet());
+        toAdd.remove(memberId);
+        Set<String> toRemove = new LinkedHashSet<String>();
+        if (removeOthers) {
+            for (Map.Entry<String, String> membership : current.entrySet()) {
+                if (origin.equals(membership.getValue()) && !groupIds.contains(membership.getKey())) {
+                    toRemove.add(membership.getKey());
+                }
+            }
+        }
+        if (toAdd.isEmpty() && toRemove.isEmpty()) {
+            return false;
+        }
+        logger.debug("Syncing memberships of " + memberId + " from " + origin + ", adding to " + toAdd
+                        + ", removing from " + toRemove);
+
+        if (!toRemove.isEmpty()) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (String groupId : toRemove) {
+                rows.add(new Object[] { groupId, memberId });
+            }
+            jdbcTemplate.batchUpdate(DELETE_MEMBER_SQL, rows);
+            if (closureTableEnabled) {
+                Set<String> affected = getClosureMembers(memberId);
+                affected.add(memberId);
+                refreshClosure(affected);
+            }
+        }
+
+        if (!toAdd.isEmpty()) {
+            String authorities = getGroupAuthorities(new ScimGroupMember(memberId));
+            Timestamp added = new Timestamp(new Date().getTime());
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (String groupId : toAdd) {
+                rows.add(new Object[] { groupId, memberId, ScimGroupMember.Type.USER.toString(), authorities, added,
+                                origin });
+            }
+            try {
+                batchUpdateInSavepoint(ADD_MEMBER_SQL, rows);
+            } catch (DuplicateKeyException e) {
+                // added concurrently (e.g. two logins at once), so fall back
+                // to one at a time and leave the ones that exist
+                for (Object[] row : rows) {
+                    try {
+                        batchUpdateInSavepoint(ADD_MEMBER_SQL, Collections.singletonList(row));
+                    } catch (DuplicateKeyException ignored) {
+                        // already a member
+                    }
+                }
+            }
+            if (closureTableEnabled) {
+                for (String groupId : toAdd) {
+                    addToClosure(groupId, memberId);
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId) throws ScimResourceNotFoundException {
         return jdbcTemplate.query(GET_MEMBERS_SQL, new PreparedStatementSetter() {
@@ -169,13 +423,53 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive)
                     throws ScimResourceNotFoundException {
         List<ScimGroup> results = new ArrayList<ScimGroup>();
-        getGroupsWithMember(results, memberId, transitive);
+        if (!transitive) {
+            getGroupsWithMember(results, memberId, false);
+        } else if (closureTableEnabled) {
+            results = jdbcTemplate.query(GET_GROUPS_FROM_CLOSURE_SQL, new PreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps) throws SQLException {
+                    ps.setString(1, memberId);
+                }
+            }, groupRowMapper);
+        } else if (!recursiveQueriesSupported || !getAncestorGroups(results, memberId)) {
+            return getGroupsWithMembers(Collections.singleton(memberId), true).get(memberId);
+        }
         if (isUser(memberId)) {
             results.addAll(defaultUserGroups);
         }
         return new HashSet<ScimGroup>(results);
     }
 
+    /**
+     * Resolve all the groups a member belongs to, directly or through nested
+     * groups, with a single recursive query.
+     *
+     * @return false if the nesting was too deep (usually because of a cycle)
+     *         for the result to be complete
+     */
+    private boolean getAncestorGroups(final List<ScimGroup> results, final String memberId) {
+        final AtomicBoolean truncated = new AtomicBoolean();
+        jdbcTemplate.query(GET_ANCESTOR_GROUPS_SQL, new PreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps) throws SQLException {
+                ps.setString(1, memberId);
+                ps.setInt(2, MAX_RECURSIVE_DEPTH);
+            }
+        }, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                ScimGroup group = new ScimGroup(rs.getString(1), rs.getString(2));
+                group.setMeta(new ScimMeta(rs.getTimestamp(3), rs.getTimestamp(4), rs.getInt(5)));
+                results.add(group);
+                if (rs.getInt(6) >= MAX_RECURSIVE_DEPTH) {
+                    truncated.set(true);
+                }
+            }
+        });
+        return !truncated.get();
+    }
+
     private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
         if (results == null) {
             return;
@@ -211,6 +505,260 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     }
 
+    @Override
+    public Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+        Map<String, Set<ScimGroup>> result = resolveGroups(memberIds, transitive);
+        for (List<String> chunk : chunks(memberIds)) {
+            for (String id : namedParameterJdbcTemplate.queryForList(GET_USER_IDS_SQL,
+                            Collections.singletonMap("ids", chunk), String.class)) {
+                // ids may come back blank padded from fixed width columns
+                Set<ScimGroup> groups = result.get(id.trim());
+                if (groups != null) {
+                    groups.addAll(defaultUserGroups);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolve the groups of several members, without the default user groups,
+     * walking nested groups one level at a time.
+     */
+    private Map<String, Set<ScimGroup>> resolveGroups(Collection<String> memberIds, boolean transitive) {
+        // direct groups of every member seen so far, resolved one level of
+        // nesting per round trip
+        final Map<String, Set<ScimGroup>> parents = new HashMap<String, Set<ScimGroup>>();
+        Set<String> queried = new HashSet<String>();
+        Set<String> frontier = new LinkedHashSet<String>(memberIds);
+        while (!frontier.isEmpty()) {
+            queried.addAll(frontier);
+            final Set<String> next = new LinkedHashSet<String>();
+            for (List<String> chunk : chunks(frontier)) {
+                namedParameterJdbcTemplate.query(GET_GROUPS_BY_MEMBERS_SQL, Collections.singletonMap("ids", chunk),
+                                new RowCallbackHandler() {
+                                    @Override
+                                    public void processRow(ResultSet rs) throws SQLException {
+                                        String memberId = rs.getString(1);
+                                        ScimGroup group = new ScimGroup(rs.getString(2), rs.getString(3));
+                                        group.setMeta(new ScimMeta(rs.getTimestamp(4), rs.getTimestamp(5), rs.getInt(6)));
+                                        Set<ScimGroup> groups = parents.get(memberId);
+                                        if (groups == null) {
+                                            groups = new HashSet<ScimGroup>();
+                                            parents.put(memberId, groups);
+                                        }
+                                        groups.add(group);
+                                        next.add(group.getId());
+                                    }
+                                });
+            }
+            next.removeAll(queried);
+            frontier = transitive ? next : Collections.<String> emptySet();
+        }
+
+        Map<String, Set<ScimGroup>> result = new HashMap<String, Set<ScimGroup>>();
+        for (String memberId : memberIds) {
+            Set<ScimGroup> groups = new HashSet<ScimGroup>();
+            Deque<String> pending = new ArrayDeque<String>();
+            pending.push(memberId);
+            while (!pending.isEmpty()) {
+                Set<ScimGroup> direct = parents.get(pending.pop());
+                if (direct == null) {
+                    continue;
+                }
+                for (ScimGroup group : direct) {
+                    // the set also guards against cycles in nested groups
+                    if (groups.add(group) && transitive) {
+                        pending.push(group.getId());
+                    }
+                }
+            }
+            result.put(memberId, groups);
+        }
+        return result;
+    }
+
+    /**
+     * Recompute the whole of the nested group closure from the group
+     * memberships, e.g. after memberships were changed outside this class.
+     */
+    @ManagedOperation(description = "Rebuild the nested group closure table from the group memberships")
+    public void rebuildClosure() {
+        inTransaction(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                List<String> memberIds = jdbcTemplate.queryForList(GET_ALL_MEMBER_IDS_SQL, String.class);
+                Map<String, Set<ScimGroup>> groups = resolveGroups(memberIds, true);
+                jdbcTemplate.update(DELETE_CLOSURE_SQL);
+                // another server may be rebuilding it at the same time
+                insertClosure(groups);
+            }
+        });
+    }
+
+    /**
+     * Compare the nested group closure with the group memberships.
+     *
+     * @return the ids of the members whose closure is out of date
+     */
+    @ManagedOperation(description = "List the members whose nested groups in the closure table are out of date")
+    public Set<String> getInconsistentClosureMembers() {
+        List<String> memberIds = jdbcTemplate.queryForList(GET_ALL_MEMBER_IDS_SQL, String.class);
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<ScimGroup>> entry : resolveGroups(memberIds, true).entrySet()) {
+            Set<String> groupIds = new HashSet<String>();
+            for (ScimGroup group : entry.getValue()) {
+                groupIds.add(group.getId());
+            }
+            expected.put(entry.getKey(), groupIds);
+        }
+        Map<String, Set<String>> actual = new HashMap<String, Set<String>>();
+        jdbcTemplate.query(GET_CLOSURE_SQL, new ClosureRowCallbackHandler(actual));
+
+        Set<String> result = new TreeSet<String>();
+        for (String memberId : expected.keySet()) {
+            if (!expected.get(memberId).equals(actual.get(memberId))) {
+                result.add(memberId);
+            }
+        }
+        for (String memberId : actual.keySet()) {
+            if (!expected.containsKey(memberId)) {
+                result.add(memberId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the rows implied by a new membership: the member and everything
+     * nested inside it now belong to the group and all of its ancestors. Like
+     * the other closure updates it is called in the transaction that changes
+     * the membership.
+     */
+    private void addToClosure(String groupId, String memberId) {
+        Set<String> descendants = getClosureMembers(memberId);
+        descendants.add(memberId);
+        Map<String, Set<String>> existing = getClosure(descendants);
+        Set<String> ancestors = new HashSet<String>(getClosure(Collections.singleton(groupId)).get(groupId));
+        ancestors.add(groupId);
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (String descendant : descendants) {
+            for (String ancestor : ancestors) {
+                if (!existing.get(descendant).contains(ancestor)) {
+                    rows.add(new Object[] { descendant, ancestor });
+                }
+            }
+        }
+        insertClosure(rows);
+    }
+
+    /**
+     * Recompute the closure rows of some members from the group memberships,
+     * after memberships they depend on were removed.
+     */
+    private void refreshClosure(Collection<String> memberIds) {
+        Map<String, Set<ScimGroup>> groups = resolveGroups(memberIds, true);
+        for (List<String> chunk : chunks(memberIds)) {
+            namedParameterJdbcTemplate.update(DELETE_CLOSURE_FOR_MEMBERS_SQL, Collections.singletonMap("ids", chunk));
+        }
+        insertClosure(groups);
+    }
+
+    private void insertClosure(Map<String, Set<ScimGroup>> groups) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Map.Entry<String, Set<ScimGroup>> entry : groups.entrySet()) {
+            for (ScimGroup group : entry.getValue()) {
+                rows.add(new Object[] { entry.getKey(), group.getId() });
+            }
+        }
+        insertClosure(rows);
+    }
+
+    /**
+     * Insert closure rows, leaving out any that a concurrent change has
+     * inserted in the meantime.
+     */
+    private void insertClosure(List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            batchUpdateInSavepoint(ADD_CLOSURE_SQL, rows);
+        } catch (DuplicateKeyException e) {
+            Set<String> memberIds = new HashSet<String>();
+            for (Object[] row : rows) {
+                memberIds.add((String) row[0]);
+            }
+            Map<String, Set<String>> existing = getClosure(memberIds);
+            List<Object[]> missing = new ArrayList<Object[]>();
+            for (Object[] row : rows) {
+                if (!existing.get(row[0]).contains(row[1])) {
+                    missing.add(row);
+                }
+            }
+            if (!missing.isEmpty()) {
+                jdbcTemplate.batchUpdate(ADD_CLOSURE_SQL, missing);
+            }
+        }
+    }
+
+    /**
+     * Run a change of memberships in a transaction. If the closure table is
+     * maintained the transaction is serializable, and unless it joins an
+     * outer transaction it is tried again if it conflicts with another change.
+     */
+    private <T> T inTransaction(TransactionCallback<T> callback) {
+        if (!closureTableEnabled) {
+            return transactionTemplate.execute(callback);
+        }
+        boolean joined = TransactionSynchronizationManager.isActualTransactionActive();
+        for (int attempt = 1;; attempt++) {
+            try {
+                return serializableTemplate.execute(callback);
+            } catch (ConcurrencyFailureException e) {
+                if (joined || attempt >= MAX_CLOSURE_ATTEMPTS) {
+                    throw e;
+                }
+                logger.debug("Group membership change conflicted with another one, trying again", e);
+            }
+        }
+    }
+
+    private void batchUpdateInSavepoint(final String sql, final List<Object[]> rows) {
+        savepointTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                jdbcTemplate.batchUpdate(sql, rows);
+            }
+        });
+    }
+
+    private Set<String> getClosureMembers(String groupId) {
+        return new HashSet<String>(jdbcTemplate.queryForList(GET_CLOSURE_MEMBERS_SQL, String.class, groupId));
+    }
+
+    private Map<String, Set<String>> getClosure(Collection<String> memberIds) {
+        Map<String, Set<String>> closure = new HashMap<String, Set<String>>();
+        for (String memberId : memberIds) {
+            closure.put(memberId, new HashSet<String>());
+        }
+        for (List<String> chunk : chunks(memberIds)) {
+            namedParameterJdbcTemplate.query(GET_CLOSURE_FOR_MEMBERS_SQL, Collections.singletonMap("ids", chunk),
+                            new ClosureRowCallbackHandler(closure));
+        }
+        return closure;
+    }
+
+    private List<List<String>> chunks(Collection<String> ids) {
+        List<String> list = new ArrayList<String>(new LinkedHashSet<String>(ids));
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < list.size(); i += MAX_IDS_PER_QUERY) {
+            chunks.add(list.subList(i, Math.min(list.size(), i + MAX_IDS_PER_QUERY)));
+        }
+        return chunks;
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId, final ScimGroupMember.Role permission)
                     throws ScimResourceNotFoundException {
@@ -293,35 +841,56 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public ScimGroupMember removeMemberById(final String groupId, final String memberId)
                     throws ScimResourceNotFoundException, MemberNotFoundException {
         ScimGroupMember member = getMemberById(groupId, memberId);
-        int deleted = jdbcTemplate.update(DELETE_MEMBER_SQL, new PreparedStatementSetter() {
+        inTransaction(new TransactionCallbackWithoutResult() {
             @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setString(1, groupId);
-                ps.setString(2, memberId);
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                Set<String> affected = closureTableEnabled ? getClosureMembers(memberId) : new HashSet<String>();
+                affected.add(memberId);
+                int deleted = jdbcTemplate.update(DELETE_MEMBER_SQL, new PreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps) throws SQLException {
+                        ps.setString(1, groupId);
+                        ps.setString(2, memberId);
+                    }
+                });
+
+                if (deleted != 1) {
+                    throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", 1,
+                                    deleted);
+                }
+                if (closureTableEnabled) {
+                    refreshClosure(affected);
+                }
             }
         });
-
-        if (deleted != 1) {
-            throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", 1, deleted);
-        }
         return member;
     }
 
     @Override
     public List<ScimGroupMember> removeMembersByGroupId(final String groupId) throws ScimResourceNotFoundException {
-        List<ScimGroupMember> members = getMembers(groupId);
+        final List<ScimGroupMember> members = getMembers(groupId);
         logger.debug("removing " + members + " members from group: " + groupId);
-
-        int deleted = jdbcTemplate.update(DELETE_MEMBERS_IN_GROUP_SQL, new PreparedStatementSetter() {
+        inTransaction(new TransactionCallbackWithoutResult() {
             @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setString(1, groupId);
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                Set<String> affected = closureTableEnabled ? getClosureMembers(groupId) : Collections
+                                .<String> emptySet();
+
+                int deleted = jdbcTemplate.update(DELETE_MEMBERS_IN_GROUP_SQL, new PreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps) throws SQLException {
+                        ps.setString(1, groupId);
+                    }
+                });
+                if (deleted != members.size()) {
+                    throw new IncorrectResultSizeDataAccessException("unexpected number of members removed",
+                                    members.size(), deleted);
+                }
+                if (closureTableEnabled) {
+                    refreshClosure(affected);
+                }
             }
         });
-        if (deleted != members.size()) {
-            throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", members.size(),
-                            deleted);
-        }
 
         return members;
     }
@@ -330,18 +899,28 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public Set<ScimGroup> removeMembersByMemberId(final String memberId) throws ScimResourceNotFoundException {
         Set<ScimGroup> groups = getGroupsWithMember(memberId, false);
         logger.debug("removing " + memberId + " from groups: " + groups);
-
-        int deleted = jdbcTemplate.update(DELETE_MEMBER_IN_GROUPS_SQL, new PreparedStatementSetter() {
+        final int expectedDelete = isUser(memberId) ? groups.size() - defaultUserGroups.size() : groups.size();
+        inTransaction(new TransactionCallbackWithoutResult() {
             @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setString(1, memberId);
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                Set<String> affected = closureTableEnabled ? getClosureMembers(memberId) : new HashSet<String>();
+                affected.add(memberId);
+
+                int deleted = jdbcTemplate.update(DELETE_MEMBER_IN_GROUPS_SQL, new PreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps) throws SQLException {
+                        ps.setString(1, memberId);
+                    }
+                });
+                if (deleted != expectedDelete) {
+                    throw new IncorrectResultSizeDataAccessException("unexpected number of members removed",
+                                    expectedDelete, deleted);
+                }
+                if (closureTableEnabled) {
+                    refreshClosure(affected);
+                }
             }
         });
-        int expectedDelete = isUser(memberId) ? groups.size() - defaultUserGroups.size() : groups.size();
-        if (deleted != expectedDelete) {
-            throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", expectedDelete,
-                            deleted);
-        }
 
         return groups;
     }
@@ -384,6 +963,35 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         }
     }
 
+    private static final class ScimGroupRowMapper implements RowMapper<ScimGroup> {
+        @Override
+        public ScimGroup mapRow(ResultSet rs, int rowNum) throws SQLException {
+            ScimGroup group = new ScimGroup(rs.getString(1), rs.getString(2));
+            group.setMeta(new ScimMeta(rs.getTimestamp(3), rs.getTimestamp(4), rs.getInt(5)));
+            return group;
+        }
+    }
+
+    private static final class ClosureRowCallbackHandler implements RowCallbackHandler {
+
+        private final Map<String, Set<String>> closure;
+
+        private ClosureRowCallbackHandler(Map<String, Set<String>> closure) {
+            this.closure = closure;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            String memberId = rs.getString(1);
+            Set<String> groupIds = closure.get(memberId);
+            if (groupIds == null) {
+                groupIds = new HashSet<String>();
+                closure.put(memberId, groupIds);
+            }
+            groupIds.add(rs.getString(2));
+        }
+    }
+
     private static final class ScimGroupMemberRowMapper implements RowMapper<ScimGroupMember> {
         @Override
         public ScimGroupMember mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -16,8 +16,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
@@ -36,12 +42,15 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.util.Assert;
 
 public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> implements ScimGroupProvisioning {
 
     private JdbcTemplate jdbcTemplate;
 
+    private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     public static final String GROUP_FIELDS = "id,displayName,created,lastModified,version";
@@ -58,6 +67,9 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 
     public static final String GET_GROUP_SQl = String.format("select %s from %s where id=?", GROUP_FIELDS, GROUP_TABLE);
 
+    public static final String GET_GROUPS_BY_NAMES_SQL = String.format(
+                    "select %s from %s where LOWER(displayName) in (:names)", GROUP_FIELDS, GROUP_TABLE);
+
     public static final String DELETE_GROUP_SQL = String.format("delete from %s where id=?", GROUP_TABLE);
 
     public static final String DELETE_GROUP_SQL_FILTER = String.format("delete from %s ", GROUP_TABLE);
@@ -68,6 +80,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
         super(jdbcTemplate, pagingListFactory, new ScimGroupRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
@@ -96,6 +109,19 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
         }
     }
 
+    @Override
+    public List<ScimGroup> retrieveByNames(Collection<String> displayNames) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (String displayName : displayNames) {
+            names.add(displayName.toLowerCase(Locale.ENGLISH));
+        }
+        if (names.isEmpty()) {
+            return new ArrayList<ScimGroup>();
+        }
+        return namedParameterJdbcTemplate.query(GET_GROUPS_BY_NAMES_SQL, Collections.singletonMap("names", names),
+                        rowMapper);
+    }
+
     @Override
     public ScimGroup create(final ScimGroup group) throws InvalidScimResourceException {
         final String id = UUID.randomUUID().toString();
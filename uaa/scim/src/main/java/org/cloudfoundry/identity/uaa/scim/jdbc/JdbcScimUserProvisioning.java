@@ -17,41 +17,59 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimBatchResult;
 import org.cloudfoundry.identity.uaa.scim.ScimMeta;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUser.Name;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.validate.DefaultPasswordValidator;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -86,12 +104,25 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     public static final String ALL_USERS = "select " + USER_FIELDS + " from users";
 
+    public static final String USERS_BY_IDS_QUERY = "select " + USER_FIELDS + " from users where id in (:ids)";
+
+    public static final String USERS_BY_NAMES_QUERY = "select " + USER_FIELDS + " from users "
+                    + "where identity_zone_id=:zoneId and username in (:userNames)";
+
     protected final JdbcTemplate jdbcTemplate;
 
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private int batchSize = 500;
+
     private PasswordValidator passwordValidator = new DefaultPasswordValidator();
 
     private PasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
 
+    private AsyncTaskExecutor passwordEncodingExecutor;
+
     private boolean deactivateOnDelete = true;
 
     private final RowMapper<ScimUser> mapper = new ScimUserRowMapper();
@@ -102,6 +133,8 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         super(jdbcTemplate, pagingListFactory, new ScimUserRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
@@ -132,11 +165,20 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     @Override
     public List<ScimUser> query(String filter, String sortBy, boolean ascending) {
+        return super.query(getZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public KeysetPage<ScimUser> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, cursor, count);
+    }
+
+    private String getZoneFilter(String filter) {
         if (StringUtils.hasText(filter)) {
             filter += " and";
         }
         filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-        return super.query(filter, sortBy, ascending);
+        return filter;
     }
 
     @Override
@@ -152,39 +194,13 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
             jdbcTemplate.update(CREATE_USER_SQL, new PreparedStatementSetter() {
                 @Override
                 public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, id);
-                    ps.setInt(2, user.getVersion());
-                    ps.setTimestamp(3, new Timestamp(new Date().getTime()));
-                    ps.setTimestamp(4, new Timestamp(new Date().getTime()));
-                    ps.setString(5, user.getUserName());
-                    ps.setString(6, user.getPrimaryEmail());
-                    if (user.getName() == null) {
-                        ps.setString(7, null);
-                        ps.setString(8, null);
-                    }
-                    else {
-                        ps.setString(7, user.getName().getGivenName());
-                        ps.setString(8, user.getName().getFamilyName());
-                    }
-                    ps.setBoolean(9, user.isActive());
-                    String phoneNumber = extractPhoneNumber(user);
-                    ps.setString(10, phoneNumber);
-                    ps.setBoolean(11, user.isVerified());
-                    ps.setString(12, origin);
-                    ps.setString(13, StringUtils.hasText(user.getExternalId())?user.getExternalId():null);
-                    ps.setString(14, identityZoneId);
-                    ps.setString(15, user.getPassword());
-
+                    setCreateValues(ps, id, user, origin, identityZoneId);
                 }
 
             });
         } catch (DuplicateKeyException e) {
             ScimUser existingUser = query("userName eq \"" + user.getUserName() + "\" and origin eq \"" + (StringUtils.hasText(user.getOrigin())? user.getOrigin() : Origin.UAA) + "\"").get(0);
-            Map<String,Object> userDetails = new HashMap<>();
-            userDetails.put("active", existingUser.isActive());
-            userDetails.put("verified", existingUser.isVerified());
-            userDetails.put("user_id", existingUser.getId());
-            throw new ScimResourceAlreadyExistsException("Username already in use: " + existingUser.getUserName(), userDetails);
+            throw alreadyExists(existingUser);
         }
         return retrieve(id);
     }
@@ -197,6 +213,192 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         return create(user);
     }
 
+    @Override
+    public List<ScimBatchResult<ScimUser>> createUsers(List<ScimUser> users, List<String> passwords) {
+        Assert.isTrue(users.size() == passwords.size(), "There must be one password per user");
+        List<ScimBatchResult<ScimUser>> results = new ArrayList<ScimBatchResult<ScimUser>>(
+                        Collections.<ScimBatchResult<ScimUser>> nCopies(users.size(), null));
+        List<Integer> valid = new ArrayList<Integer>();
+        Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < users.size(); i++) {
+            ScimUser user = users.get(i);
+            try {
+                validate(user);
+                passwordValidator.validate(passwords.get(i), user);
+                if (!keys.add(getOrigin(user) + ":" + user.getUserName())) {
+                    throw new ScimResourceAlreadyExistsException("Username already in use: " + user.getUserName());
+                }
+                valid.add(i);
+            } catch (ScimException e) {
+                results.set(i, ScimBatchResult.<ScimUser> failure(e));
+            }
+        }
+        encodePasswords(users, passwords, valid);
+        for (int from = 0; from < valid.size(); from += batchSize) {
+            createBatch(users, valid.subList(from, Math.min(from + batchSize, valid.size())), results);
+        }
+        return results;
+    }
+
+    private void encodePasswords(final List<ScimUser> users, final List<String> passwords,
+                    final List<Integer> indexes) {
+        final int tasks = passwordEncodingExecutor == null ? 1 : Math.min(Runtime.getRuntime()
+                        .availableProcessors(), indexes.size());
+        if (tasks <= 1) {
+            for (int i : indexes) {
+                users.get(i).setPassword(passwordEncoder.encode(passwords.get(i)));
+            }
+            return;
+        }
+        // one task per share of the passwords, so that a large request
+        // doesn't fill the queue of the shared executor
+        List<Future<?>> encoded = new ArrayList<Future<?>>(tasks);
+        for (int task = 0; task < tasks; task++) {
+            final int first = task;
+            encoded.add(passwordEncodingExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = first; n < indexes.size(); n += tasks) {
+                        int i = indexes.get(n);
+                        users.get(i).setPassword(passwordEncoder.encode(passwords.get(i)));
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : encoded) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encoding passwords", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not encode password", e.getCause());
+        }
+    }
+
+    /**
+     * Insert one batch of valid users in a single transaction. If that fails
+     * (e.g. because another request created one of the same users in the
+     * meantime), the users of the batch are created one at a time instead.
+     */
+    private void createBatch(final List<ScimUser> users, List<Integer> indexes,
+                    List<ScimBatchResult<ScimUser>> results) {
+        final String identityZoneId = IdentityZoneHolder.get().getId();
+        Map<String, ScimUser> existing = findExisting(users, indexes, identityZoneId);
+        final List<Integer> inserts = new ArrayList<Integer>(indexes.size());
+        final List<String> ids = new ArrayList<String>(indexes.size());
+        for (int i : indexes) {
+            ScimUser user = users.get(i);
+            ScimUser existingUser = existing.get(getOrigin(user) + ":" + user.getUserName());
+            if (existingUser != null) {
+                results.set(i, ScimBatchResult.<ScimUser> failure(alreadyExists(existingUser)));
+            }
+            else {
+                inserts.add(i);
+                ids.add(UUID.randomUUID().toString());
+            }
+        }
+        if (inserts.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    jdbcTemplate.batchUpdate(CREATE_USER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ScimUser user = users.get(inserts.get(i));
+                            setCreateValues(ps, ids.get(i), user, getOrigin(user), identityZoneId);
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return inserts.size();
+                        }
+                    });
+                }
+            });
+        } catch (DataAccessException e) {
+            logger.debug("Batch insert failed, creating users one at a time", e);
+            for (int i : inserts) {
+                try {
+                    results.set(i, ScimBatchResult.success(create(users.get(i))));
+                } catch (ScimException ex) {
+                    results.set(i, ScimBatchResult.<ScimUser> failure(ex));
+                } catch (DataAccessException ex) {
+                    results.set(i, ScimBatchResult.<ScimUser> failure(new ScimException(ex.getMessage(), ex,
+                                    HttpStatus.INTERNAL_SERVER_ERROR)));
+                }
+            }
+            return;
+        }
+        Map<String, ScimUser> created = new HashMap<String, ScimUser>();
+        for (ScimUser user : namedJdbcTemplate.query(USERS_BY_IDS_QUERY, Collections.singletonMap("ids", ids), mapper)) {
+            created.put(user.getId(), user);
+        }
+        for (int j = 0; j < inserts.size(); j++) {
+            results.set(inserts.get(j), ScimBatchResult.success(created.get(ids.get(j))));
+        }
+    }
+
+    private Map<String, ScimUser> findExisting(List<ScimUser> users, List<Integer> indexes, String identityZoneId) {
+        Set<String> userNames = new HashSet<String>();
+        for (int i : indexes) {
+            userNames.add(users.get(i).getUserName());
+        }
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("zoneId", identityZoneId);
+        params.put("userNames", userNames);
+        Map<String, ScimUser> existing = new HashMap<String, ScimUser>();
+        for (ScimUser user : namedJdbcTemplate.query(USERS_BY_NAMES_QUERY, params, mapper)) {
+            existing.put(user.getOrigin() + ":" + user.getUserName(), user);
+        }
+        return existing;
+    }
+
+    private ScimResourceAlreadyExistsException alreadyExists(ScimUser existingUser) {
+        Map<String, Object> userDetails = new HashMap<>();
+        userDetails.put("active", existingUser.isActive());
+        userDetails.put("verified", existingUser.isVerified());
+        userDetails.put("user_id", existingUser.getId());
+        return new ScimResourceAlreadyExistsException("Username already in use: " + existingUser.getUserName(), userDetails);
+    }
+
+    private static String getOrigin(ScimUser user) {
+        return StringUtils.hasText(user.getOrigin()) ? user.getOrigin() : Origin.UAA;
+    }
+
+    private void setCreateValues(PreparedStatement ps, String id, ScimUser user, String origin, String identityZoneId)
+                    throws SQLException {
+        ps.setString(1, id);
+        ps.setInt(2, user.getVersion());
+        ps.setTimestamp(3, new Timestamp(new Date().getTime()));
+        ps.setTimestamp(4, new Timestamp(new Date().getTime()));
+        ps.setString(5, user.getUserName());
+        ps.setString(6, user.getPrimaryEmail());
+        if (user.getName() == null) {
+            ps.setString(7, null);
+            ps.setString(8, null);
+        }
+        else {
+            ps.setString(7, user.getName().getGivenName());
+            ps.setString(8, user.getName().getFamilyName());
+        }
+        ps.setBoolean(9, user.isActive());
+        String phoneNumber = extractPhoneNumber(user);
+        ps.setString(10, phoneNumber);
+        ps.setBoolean(11, user.isVerified());
+        ps.setString(12, origin);
+        ps.setString(13, StringUtils.hasText(user.getExternalId())?user.getExternalId():null);
+        ps.setString(14, identityZoneId);
+        ps.setString(15, user.getPassword());
+    }
+
     private void validate(final ScimUser user) throws InvalidScimResourceException {
         if (!usernamePattern.matcher(user.getUserName()).matches()) {
             throw new InvalidScimResourceException("Username must match pattern: " + usernamePattern.pattern());
@@ -365,6 +567,15 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         this.deactivateOnDelete = deactivateOnDelete;
     }
 
+    /**
+     * @param batchSize the number of users inserted in one transaction by
+     *            {@link #createUsers(List, List)} (default 500)
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
     public void setPasswordValidator(PasswordValidator passwordValidator) {
         Assert.notNull(passwordValidator, "passwordValidator cannot be null");
         this.passwordValidator = passwordValidator;
@@ -380,6 +591,16 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         this.passwordEncoder = passwordEncoder;
     }
 
+    /**
+     * The executor that {@link #createUsers(List, List)} hashes passwords on,
+     * with up to one task per processor. It is shared by all requests and
+     * its lifecycle is managed by the caller. Defaults to null, which hashes
+     * them on the calling thread.
+     */
+    public void setPasswordEncodingExecutor(AsyncTaskExecutor passwordEncodingExecutor) {
+        this.passwordEncodingExecutor = passwordEncodingExecutor;
+    }
+
     /**
      * Sets the regular expression which will be used to validate the username.
      */
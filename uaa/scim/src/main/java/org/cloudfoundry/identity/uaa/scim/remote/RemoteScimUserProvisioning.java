@@ -13,14 +13,21 @@
 
 package org.cloudfoundry.identity.uaa.scim.remote;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.cloudfoundry.identity.uaa.message.PasswordChangeRequest;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
+import org.cloudfoundry.identity.uaa.scim.ScimBatchResult;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -92,6 +99,19 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
         return create(user);
     }
 
+    @Override
+    public List<ScimBatchResult<ScimUser>> createUsers(List<ScimUser> users, List<String> passwords) {
+        List<ScimBatchResult<ScimUser>> results = new ArrayList<ScimBatchResult<ScimUser>>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            try {
+                results.add(ScimBatchResult.success(createUser(users.get(i), passwords.get(i))));
+            } catch (ScimException e) {
+                results.add(ScimBatchResult.<ScimUser> failure(e));
+            }
+        }
+        return results;
+    }
+
     @Override
     public ScimUser update(String id, ScimUser user) throws InvalidScimResourceException, ScimResourceNotFoundException {
         restTemplate.put(baseUrl + "/User/{id}", user, id);
@@ -124,8 +144,50 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
                         ScimUser.class, id).getBody();
     }
 
+    @Override
+    public KeysetPage<ScimUser> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("filter", filter);
+        parameters.put("sortBy", sortBy);
+        // an empty cursor asks for the first page
+        parameters.put("cursor", cursor == null ? "" : cursor);
+        parameters.put("count", count);
+        String sort = sortBy == null ? "" : "&sortBy={sortBy}";
+        String order = ascending ? "" : "&sortOrder=descending";
+        UserPage page = restTemplate.getForObject(baseUrl + "/Users?filter={filter}" + sort + order
+                        + "&cursor={cursor}&count={count}", UserPage.class, parameters);
+        return new KeysetPage<ScimUser>(page.getResources(), page.getNextCursor());
+    }
+
     @Override
     public int delete(String filter) {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * The parts of the search results that a page of users needs.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class UserPage {
+
+        private List<ScimUser> resources = new ArrayList<ScimUser>();
+
+        private String nextCursor;
+
+        public List<ScimUser> getResources() {
+            return resources;
+        }
+
+        public void setResources(List<ScimUser> resources) {
+            this.resources = resources;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public void setNextCursor(String nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+    }
 }
@@ -343,6 +343,26 @@ public class ScimUserBootstrapTests {
     }
 
 
+    @Test
+    public void unchangedUserIsNotUpdatedThroughEvent() throws Exception {
+        String[] externalAuthorities = new String[] {"extTest1","extTest2"};
+        String origin = "testOrigin";
+        addIdentityProvider(jdbcTemplate,origin);
+        String username = new RandomValueStringGenerator().generate();
+        UaaUser user = getUaaUser(new String[0], origin, "test@test.org", "FirstName", "LastName", "", null, new RandomValueStringGenerator().generate(), username);
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(user));
+        bootstrap.afterPropertiesSet();
+
+        ScimUser created = db.query("userName eq \""+username +"\" and origin eq \""+origin+"\"").get(0);
+        user = getUaaUser(new String[0], origin, "test@test.org", "FirstName", "LastName", "", null, created.getId(), username);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, getAuthorities(externalAuthorities),true));
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, getAuthorities(externalAuthorities),true));
+
+        ScimUser updated = db.retrieve(created.getId());
+        assertEquals(created.getVersion(), updated.getVersion());
+        validateAuthoritiesCreated(externalAuthorities, new String[0], origin, updated);
+    }
+
     private UaaUser getUaaUser(String[] userAuthorities, String origin, String email, String firstName, String lastName, String password, String externalId, String userId, String username) {
         return new UaaUser(
             userId,
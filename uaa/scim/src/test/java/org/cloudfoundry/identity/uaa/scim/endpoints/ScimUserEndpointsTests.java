@@ -19,9 +19,11 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollection;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -31,6 +33,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -48,6 +51,8 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkOperation;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkRequest;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
@@ -269,6 +274,50 @@ public class ScimUserEndpointsTests {
         assertEquals(2, endpoints.getUser(joel.getId(), new MockHttpServletResponse()).getApprovals().size());
     }
 
+    @Test
+    public void bulkCreatesUsersAndReportsEachOperation() {
+        ScimBulkRequest request = new ScimBulkRequest();
+        ScimUser vidya = new ScimUser(null, "vidya", "Vidya", "V");
+        vidya.addEmail("vidya@vmware.com");
+        vidya.setApprovals(Collections.singleton(new Approval("vidya", "c1", "s1", 6000,
+                        Approval.ApprovalStatus.APPROVED)));
+        request.getOperations().add(bulkOperation("POST", "/Users", "v", vidya));
+        ScimUser duplicate = new ScimUser(null, "jdsa", "Joel", "D'sa");
+        duplicate.addEmail(JDSA_VMWARE_COM);
+        request.getOperations().add(bulkOperation("POST", "/Users", "j", duplicate));
+        request.getOperations().add(bulkOperation("DELETE", "/Users/" + joel.getId(), null, null));
+
+        List<ScimBulkOperation> results = endpoints.bulk(request).getOperations();
+
+        assertEquals(3, results.size());
+        assertEquals("201", results.get(0).getStatus().get("code"));
+        assertEquals("v", results.get(0).getBulkId());
+        String id = results.get(0).getLocation().substring("/Users/".length());
+        assertEquals(1, endpoints.getUser(id, new MockHttpServletResponse()).getApprovals().size());
+        assertEquals("409", results.get(1).getStatus().get("code"));
+        assertEquals("400", results.get(2).getStatus().get("code"));
+        assertEquals("DELETE", results.get(2).getMethod());
+        assertNotNull(dao.retrieve(joel.getId()));
+    }
+
+    @Test(expected = ScimException.class)
+    public void bulkRejectsTooManyOperations() {
+        endpoints.setMaxBulkOperations(1);
+        ScimBulkRequest request = new ScimBulkRequest();
+        request.getOperations().add(bulkOperation("DELETE", "/Users/a", null, null));
+        request.getOperations().add(bulkOperation("DELETE", "/Users/b", null, null));
+        endpoints.bulk(request);
+    }
+
+    private ScimBulkOperation bulkOperation(String method, String path, String bulkId, ScimUser data) {
+        ScimBulkOperation operation = new ScimBulkOperation();
+        operation.setMethod(method);
+        operation.setPath(path);
+        operation.setBulkId(bulkId);
+        operation.setData(data);
+        return operation;
+    }
+
     @Test
     public void userGetsADefaultPassword() {
         ScimUser user = new ScimUser(null, "dave", "David", "Syer");
@@ -420,6 +469,19 @@ public class ScimUserEndpointsTests {
         assertEquals(2, results.getResources().size());
     }
 
+    @Test
+    public void testFindPagesOfIdsWithCursor() {
+        SearchResults<?> results = endpoints.findUsers("id", "id pr", null, "ascending", 1, 1, "");
+        assertEquals(1, results.getResources().size());
+        assertNotNull(results.getNextCursor());
+        Collection<Object> ids = getSetFromMaps(results.getResources(), "id");
+        results = endpoints.findUsers("id", "id pr", null, "ascending", 1, 1, results.getNextCursor());
+        assertEquals(1, results.getResources().size());
+        assertNull(results.getNextCursor());
+        ids.addAll(getSetFromMaps(results.getResources(), "id"));
+        assertEquals(2, ids.size());
+    }
+
     @Test
     public void testFindWhenStartGreaterThanTotal() {
         SearchResults<?> results = endpoints.findUsers("id", "id pr", null, "ascending", 3, 100);
@@ -459,7 +521,8 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMembers(anyCollection(), anyBoolean());
+        verify(mockgroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean());
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -470,7 +533,8 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("groups", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMembers(anyCollection(), anyBoolean());
+        verify(mockgroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean());
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -492,7 +556,8 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollection());
+        verify(mockApprovalStore, never()).getApprovals(anyString());
 
         endpoints.setApprovalStore(am);
     }
@@ -503,7 +568,8 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("approvals", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollection());
+        verify(mockApprovalStore, never()).getApprovals(anyString());
 
         endpoints.setApprovalStore(am);
     }
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class JdbcScimExporterTests extends JdbcTestBase {
+
+    private static final String addUserSqlFormat = "insert into users (id, username, password, email, givenName, familyName, identity_zone_id) values ('%s','%s','secret','%s','%s','%s','%s')";
+
+    private static final String addGroupSqlFormat = "insert into groups (id, displayName) values ('%s','%s')";
+
+    private static final String addMemberSqlFormat = "insert into group_membership (group_id, member_id, member_type, authorities, origin) values ('%s', '%s', '%s', 'READ', 'uaa')";
+
+    private static final String addApprovalSqlFormat = "insert into authz_approvals (user_id, client_id, scope, expiresAt, status, lastModifiedAt) values ('%s', 'app', 'openid', ?, 'APPROVED', ?)";
+
+    private JdbcScimExporter exporter;
+
+    @Before
+    public void initJdbcScimExporterTests() {
+        exporter = new JdbcScimExporter(new JdbcTemplate(dataSource));
+        exporter.setFetchSize(1);
+        addUser("u1", "uaa");
+        addUser("u2", "other");
+        jdbcTemplate.execute(String.format(addGroupSqlFormat, "g1", "test1"));
+        jdbcTemplate.execute(String.format(addMemberSqlFormat, "g1", "u1", "USER"));
+        jdbcTemplate.execute(String.format(addMemberSqlFormat, "g1", "u2", "USER"));
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        jdbcTemplate.update(String.format(addApprovalSqlFormat, "u1"), now, now);
+        jdbcTemplate.update(String.format(addApprovalSqlFormat, "u2"), now, now);
+    }
+
+    private void addUser(String id, String zoneId) {
+        jdbcTemplate.execute(String.format(addUserSqlFormat, id, id, id + "@test.org", id, id, zoneId));
+    }
+
+    @Test
+    public void testExportOfZone() throws Exception {
+        List<Map<String, Object>> records = export(null);
+        assertEquals(4, records.size());
+        assertEquals("user", records.get(0).get("type"));
+        assertEquals("u1", records.get(0).get("userName"));
+        assertFalse(records.get(0).containsKey("password"));
+        assertEquals("group", records.get(1).get("type"));
+        assertEquals("test1", records.get(1).get("displayName"));
+        assertEquals("membership", records.get(2).get("type"));
+        assertEquals("u1", records.get(2).get("memberId"));
+        assertEquals("approval", records.get(3).get("type"));
+        assertEquals("u1", records.get(3).get("userId"));
+    }
+
+    @Test
+    public void testExportSinceLastModified() throws Exception {
+        Timestamp old = new Timestamp(System.currentTimeMillis() - 3600 * 1000);
+        jdbcTemplate.update("update users set lastModified=?", old);
+        jdbcTemplate.update("update groups set lastModified=?", old);
+        jdbcTemplate.update("update group_membership set added=?", old);
+        List<Map<String, Object>> records = export(new Date(System.currentTimeMillis() - 60 * 1000));
+        assertEquals(1, records.size());
+        assertEquals("approval", records.get(0).get("type"));
+    }
+
+    private List<Map<String, Object>> export(Date since) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = exporter.export("uaa", since, out);
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            if (line.length() > 0) {
+                records.add(JsonUtils.readValue(line, new TypeReference<Map<String, Object>>() {
+                }));
+            }
+        }
+        assertEquals(count, records.size());
+        return records;
+    }
+}
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -261,4 +262,37 @@ public class JdbcScimGroupExternalMembershipManagerTests extends JdbcTestBase {
             assertEquals(testGroups.size(), 0);
         }
     }
+    @Test
+    public void externalGroupMappingsAreIndexed() {
+        edao.setCacheRefreshIntervalSeconds(60);
+        edao.mapExternalGroup("g1", "cn=engineering,ou=groups,dc=example,dc=com");
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup("CN=Engineering,ou=groups,dc=example,dc=com").size());
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=hr,ou=groups,dc=example,dc=com").size());
+        assertEquals(1, edao.getCacheMissCount());
+        assertEquals(2, edao.getCacheHitCount());
+
+        // changes through the manager are seen straight away
+        edao.mapExternalGroup("g2", "cn=engineering,ou=groups,dc=example,dc=com");
+        List<ScimGroupExternalMember> mappings = edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com");
+        assertEquals(2, mappings.size());
+        edao.unmapExternalGroup("g1", "cn=engineering,ou=groups,dc=example,dc=com");
+        mappings = edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com");
+        assertEquals(1, mappings.size());
+        assertEquals("test2", mappings.get(0).getDisplayName());
+    }
+
+    @Test
+    public void externalGroupMappingIndexNoticesOtherChanges() throws Exception {
+        edao.setCacheRefreshIntervalSeconds(1);
+        edao.mapExternalGroup("g1", "cn=engineering,ou=groups,dc=example,dc=com");
+        assertEquals("test1", edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").get(0).getDisplayName());
+
+        jdbcTemplate.update("update groups set displayName='renamed', lastModified=? where id='g1'",
+                        new Timestamp(System.currentTimeMillis() + 1000));
+        assertEquals("test1", edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").get(0).getDisplayName());
+        Thread.sleep(1100);
+        assertEquals("renamed", edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").get(0).getDisplayName());
+        assertEquals(1, edao.getCacheRefreshCount());
+    }
 }
@@ -17,6 +17,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -67,6 +68,7 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         dao.setScimGroupProvisioning(gdao);
         dao.setScimUserProvisioning(udao);
         dao.setDefaultUserGroups(Collections.singleton("uaa.user"));
+        dao.setRecursiveQueriesSupported(true);
 
         addGroup("g1", "test1");
         addGroup("g2", "test2");
@@ -125,6 +127,7 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
     @After
     public void cleanupDataSource() throws Exception {
         TestUtils.deleteFrom(dataSource, "group_membership");
+        TestUtils.deleteFrom(dataSource, "group_membership_closure");
         TestUtils.deleteFrom(dataSource, "groups");
         TestUtils.deleteFrom(dataSource, "users");
 
@@ -184,6 +187,22 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(3, groups.size());
     }
 
+    @Test
+    public void canGetGroupsForSeveralMembers() {
+        addMembers();
+        addMember("g2", "g3", "GROUP", "READER");
+        addMember("g3", "g1", "GROUP", "READER");
+
+        for (boolean transitive : new boolean[] { false, true }) {
+            Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(Arrays.asList("m1", "m2", "m3", "g2"),
+                            transitive);
+            assertEquals(4, groups.size());
+            for (String memberId : groups.keySet()) {
+                assertEquals(dao.getGroupsWithMember(memberId, transitive), groups.get(memberId));
+            }
+        }
+    }
+
     private void addMembers() {
         addMember("g1", "m3", "USER", "READER");
         addMember("g1", "g2", "GROUP", "READER");
@@ -203,6 +222,19 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(4, groups.size());
     }
 
+    @Test
+    public void canGetGroupsForMemberWithoutRecursiveQueries() {
+        addMember("g1", "m3", "USER", "READER");
+        addMember("g1", "g2", "GROUP", "READER");
+        addMember("g2", "g3", "GROUP", "READER");
+        addMember("g3", "g1", "GROUP", "READER");
+
+        Set<ScimGroup> expected = dao.getGroupsWithMember("m3", true);
+        dao.setRecursiveQueriesSupported(false);
+        assertEquals(expected, dao.getGroupsWithMember("m3", true));
+        assertEquals(dao.getGroupsWithMember("g2", false).size() + 2, dao.getGroupsWithMember("g2", true).size());
+    }
+
     @Test
     public void canAddMember() throws Exception {
         validateCount(0);
@@ -384,6 +416,99 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
 
     }
 
+    @Test
+    public void canSyncMembershipsFromAnOrigin() throws Exception {
+        addMember("g1", "m1", "USER", "READER", Origin.UAA);
+        addMember("g2", "m1", "USER", "READER", Origin.LDAP);
+
+        assertTrue(dao.syncMemberships("m1", Origin.LDAP, Arrays.asList("g1", "g3"), true));
+        // g1 is kept as a UAA membership, g2 is removed, g3 is added
+        assertEquals(Origin.UAA, dao.getMemberById("g1", "m1").getOrigin());
+        assertEquals(Origin.LDAP, dao.getMemberById("g3", "m1").getOrigin());
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from group_membership where member_id='m1'"));
+
+        assertFalse(dao.syncMemberships("m1", Origin.LDAP, Arrays.asList("g1", "g3"), true));
+        assertTrue(dao.syncMemberships("m1", Origin.LDAP, Collections.<String> emptySet(), true));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from group_membership where member_id='m1'"));
+    }
+
+    @Test
+    public void syncMembershipsMaintainsClosureTable() throws Exception {
+        dao.setClosureTableEnabled(true);
+        addMember("g2", "g1", "GROUP", "READER");
+        dao.rebuildClosure();
+        dao.syncMemberships("m1", Origin.LDAP, Arrays.asList("g1", "g3"), true);
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        assertEquals(3, jdbcTemplate.queryForInt("select count(*) from group_membership_closure where member_id='m1'"));
+        dao.syncMemberships("m1", Origin.LDAP, Arrays.asList("g3"), true);
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from group_membership_closure where member_id='m1'"));
+    }
+
+    @Test
+    public void canMaintainClosureTable() throws Exception {
+        dao.setClosureTableEnabled(true);
+        dao.addMember("g1", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        dao.addMember("g2", new ScimGroupMember("m2", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        dao.addMember("g3", new ScimGroupMember("g2", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER));
+        dao.addMember("g1", new ScimGroupMember("g3", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER));
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        validateUserGroups("m2", "test2", "test3.i", "test1.i");
+
+        dao.addMember("g2", new ScimGroupMember("g1", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER));
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        assertEquals(4, dao.getGroupsWithMember("m1", true).size());
+
+        dao.removeMemberById("g3", "g2");
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        validateUserGroups("m2", "test2");
+        validateUserGroups("m1", "test1", "test2.i");
+
+        dao.removeMembersByGroupId("g1");
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        validateUserGroups("m1");
+
+        dao.removeMembersByMemberId("m2");
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from group_membership_closure where member_id='m2'"));
+    }
+
+    @Test
+    public void canRebuildClosureTable() throws Exception {
+        addMembers();
+        dao.setClosureTableEnabled(true);
+        assertEquals(3, dao.getInconsistentClosureMembers().size());
+        dao.afterPropertiesSet();
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        validateUserGroups("m2", "test3");
+        assertEquals(1, dao.getGroupsWithMember("g2", true).size());
+
+        dao.delete("member_id eq \"g2\"");
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        validateUserGroups("m3", "test1", "test2");
+    }
+
+    @Test
+    public void deleteByFilterOnlyRefreshesTheAffectedClosure() throws Exception {
+        addMembers();
+        dao.setClosureTableEnabled(true);
+        dao.afterPropertiesSet();
+        // a stale row for a member that the delete doesn't touch
+        jdbcTemplate.update("insert into group_membership_closure (member_id, group_id) values ('m1', 'g3')");
+        dao.delete("member_id eq \"g2\"");
+        assertEquals(Collections.singleton("m1"), dao.getInconsistentClosureMembers());
+        validateUserGroups("m3", "test1", "test2");
+    }
+
+    @Test
+    public void closureRowsAddedConcurrentlyAreTolerated() throws Exception {
+        dao.setClosureTableEnabled(true);
+        jdbcTemplate.update("insert into group_membership_closure (member_id, group_id) values ('m1', 'g1')");
+        dao.addMember("g1", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
+        assertTrue(dao.getInconsistentClosureMembers().isEmpty());
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from group_membership where member_id='m1'"));
+    }
+
     @Test
     public void canRemoveAllMembers() {
         dao.addMember("g1", new ScimGroupMember("m1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER));
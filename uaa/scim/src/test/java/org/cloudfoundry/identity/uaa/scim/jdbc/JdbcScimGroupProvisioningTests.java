@@ -95,6 +95,13 @@ public class JdbcScimGroupProvisioningTests extends JdbcTestBase {
         assertEquals(1, dao.query("id co \"2\"", "displayName", false).size());
     }
 
+    @Test
+    public void canRetrieveGroupsByNames() {
+        List<ScimGroup> groups = dao.retrieveByNames(Arrays.asList("UAA.User", "openid", "unknown"));
+        assertEquals(2, groups.size());
+        assertEquals(0, dao.retrieveByNames(Arrays.<String> asList()).size());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void cannotRetrieveGroupsWithIllegalQuotesFilter() {
         assertEquals(1, dao.query("displayName eq \"bar").size());
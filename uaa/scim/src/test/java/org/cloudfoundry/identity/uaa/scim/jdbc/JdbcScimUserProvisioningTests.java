@@ -26,13 +26,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimBatchResult;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUser.Group;
 import org.cloudfoundry.identity.uaa.scim.ScimUser.PhoneNumber;
@@ -56,6 +60,7 @@ import org.junit.Test;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
@@ -145,6 +150,86 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertEquals(userName, created.getUserName());
     }
 
+    @Test
+    public void canCreateUsersInBatches() {
+        db.setBatchSize(2);
+        ScimUser jo = new ScimUser(null, "jo@foo.com", "Jo", "User");
+        jo.addEmail("jo@blah.com");
+        ScimUser joe = new ScimUser(null, "joe", "Joe", "User");
+        joe.addEmail("joe@blah.com");
+        ScimUser jonah = new ScimUser(null, "jonah@foo.com", "Jonah", "User");
+        jonah.addEmail("jonah@blah.com");
+        ScimUser noEmail = new ScimUser(null, "user@example.com", "No", "Email");
+        ScimUser jonahAgain = new ScimUser(null, "jonah@foo.com", "Jonah", "Again");
+        jonahAgain.addEmail("jonah@blah.com");
+
+        List<ScimBatchResult<ScimUser>> results = db.createUsers(Arrays.asList(jo, joe, jonah, noEmail, jonahAgain),
+                        Arrays.asList("j7hyqpassX", "j7hyqpassX", "j7hyqpassY", "j7hyqpassX", "j7hyqpassX"));
+
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("jo@foo.com", results.get(0).getResource().getUserName());
+        assertNotNull(results.get(0).getResource().getId());
+        assertEquals(HttpStatus.CONFLICT, results.get(1).getError().getStatus());
+        assertEquals(JOE_ID, results.get(1).getError().getExtraInfo().get("user_id"));
+        assertTrue(results.get(2).isSuccess());
+        assertTrue(results.get(3).getError() instanceof InvalidScimResourceException);
+        assertTrue(results.get(4).getError() instanceof ScimResourceAlreadyExistsException);
+        String password = jdbcTemplate.queryForObject("select password from users where id=?", String.class,
+                        results.get(2).getResource().getId());
+        assertTrue(BCrypt.checkpw("j7hyqpassY", password));
+        assertEquals(existingUserCount + 4, jdbcTemplate.queryForInt("select count(id) from users"));
+    }
+
+    @Test
+    public void passwordsAreEncodedOnTheSharedExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(2);
+        executor.setQueueCapacity(1);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        db.setPasswordEncodingExecutor(executor);
+        try {
+            List<ScimUser> users = new ArrayList<ScimUser>();
+            List<String> passwords = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                ScimUser user = new ScimUser(null, "user" + i + "@foo.com", "User", "" + i);
+                user.addEmail("user" + i + "@foo.com");
+                users.add(user);
+                passwords.add("j7hyqpass" + i);
+            }
+            List<ScimBatchResult<ScimUser>> results = db.createUsers(users, passwords);
+            for (int i = 0; i < 5; i++) {
+                String password = jdbcTemplate.queryForObject("select password from users where id=?",
+                                String.class, results.get(i).getResource().getId());
+                assertTrue(BCrypt.checkpw("j7hyqpass" + i, password));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchFallsBackToSingleInsertsWhenAUserAppearsConcurrently() {
+        ScimUser jo = new ScimUser(null, "jo@foo.com", "Jo", "User");
+        jo.addEmail("jo@blah.com");
+        ScimUser upper = new ScimUser(null, "JONAH@FOO.COM", "Jonah", "User");
+        upper.addEmail("jonah@blah.com");
+        jdbcTemplate.execute("create unique index tmp_users_lower_key on users (identity_zone_id, origin, email)");
+        try {
+            ScimUser sameEmail = new ScimUser(null, "jonah@foo.com", "Jonah", "Again");
+            sameEmail.addEmail("jonah@blah.com");
+            List<ScimBatchResult<ScimUser>> results = db.createUsers(Arrays.asList(jo, upper, sameEmail),
+                            Arrays.asList("j7hyqpassX", "j7hyqpassX", "j7hyqpassX"));
+            assertTrue(results.get(0).isSuccess());
+            assertTrue(results.get(1).isSuccess());
+            assertFalse(results.get(2).isSuccess());
+        } finally {
+            jdbcTemplate.execute("drop index tmp_users_lower_key");
+        }
+    }
+
     @Test
     public void canCreateUserInDefaultIdentityZone() {
         ScimUser user = new ScimUser(null, "jo@foo.com", "Jo", "User");
@@ -606,6 +691,58 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertTrue(2 <= db.retrieveAll().size());
     }
 
+    @Test
+    public void canPageThroughUsersWithCursor() {
+        for (String sortBy : new String[] { null, "userName", "created" }) {
+            for (boolean ascending : new boolean[] { true, false }) {
+                List<String> expected = new ArrayList<String>();
+                for (ScimUser user : db.query("id pr", sortBy == null ? "id" : sortBy, ascending)) {
+                    expected.add(user.getId());
+                }
+                List<String> ids = new ArrayList<String>();
+                String cursor = null;
+                do {
+                    KeysetPage<ScimUser> page = db.query("id pr", sortBy, ascending, cursor, 1);
+                    for (ScimUser user : page.getResources()) {
+                        ids.add(user.getId());
+                    }
+                    cursor = page.getNextCursor();
+                } while (cursor != null);
+                if (sortBy == null || sortBy.equals("userName")) {
+                    assertEquals(expected, ids);
+                } else {
+                    assertEquals(new HashSet<String>(expected), new HashSet<String>(ids));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void canPageThroughUsersWithNullSortKeys() {
+        jdbcTemplate.update("update users set familyName=null where id=?", JOE_ID);
+        int total = db.query("id pr").size();
+        for (boolean ascending : new boolean[] { true, false }) {
+            List<String> ids = new ArrayList<String>();
+            String cursor = null;
+            do {
+                KeysetPage<ScimUser> page = db.query("id pr", "familyName", ascending, cursor, 1);
+                for (ScimUser user : page.getResources()) {
+                    ids.add(user.getId());
+                }
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            assertEquals(total, ids.size());
+            assertEquals(total, new HashSet<String>(ids).size());
+            assertEquals(JOE_ID, ascending ? ids.get(total - 1) : ids.get(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotUseCursorWithDifferentSortOrder() {
+        String cursor = db.query("id pr", "userName", true, null, 1).getNextCursor();
+        db.query("id pr", "userName", false, cursor, 1);
+    }
+
     @Test
     public void canRetrieveUsersWithFilterExists() {
         assertTrue(2 <= db.query("username pr").size());
@@ -15,9 +15,11 @@ package org.cloudfoundry.identity.uaa.scim.remote;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.cloudfoundry.identity.uaa.message.PasswordChangeRequest;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.junit.After;
 import org.junit.Before;
@@ -74,6 +76,22 @@ public class RemoteScimUserProvisioningTests {
         Mockito.verify(restTemplate).getForObject("http://base/Users?filter={filter}", List.class, "name eq \"foo\"");
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPageThroughUsers() {
+        RemoteScimUserProvisioning.UserPage page = new RemoteScimUserProvisioning.UserPage();
+        page.setResources(Collections.singletonList(user));
+        page.setNextCursor("next");
+        Mockito.when(
+                        restTemplate.getForObject(
+                                        Matchers.eq("http://base/Users?filter={filter}&sortBy={sortBy}&sortOrder=descending&cursor={cursor}&count={count}"),
+                                        Matchers.eq(RemoteScimUserProvisioning.UserPage.class), Matchers.anyMap()))
+                        .thenReturn(page);
+        KeysetPage<ScimUser> result = service.query("id pr", "userName", false, null, 10);
+        assertEquals(Collections.singletonList(user), result.getResources());
+        assertEquals("next", result.getNextCursor());
+    }
+
     @Test
     public void testCreateUser() {
         service.createUser(user, "password");
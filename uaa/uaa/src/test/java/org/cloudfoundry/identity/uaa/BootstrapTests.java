@@ -17,7 +17,7 @@ import org.cloudfoundry.identity.uaa.config.YamlServletProfileInitializer;
 import org.cloudfoundry.identity.uaa.oauth.ClientAdminBootstrap;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.test.TestUtils;
-import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.CachingUaaUserDatabase;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -94,7 +94,7 @@ public class BootstrapTests {
     @Test
     public void testRootContextDefaults() throws Exception {
         context = getServletContext("hsqldb", "file:./src/main/webapp/WEB-INF/spring-servlet.xml");
-        assertNotNull(context.getBean("userDatabase", JdbcUaaUserDatabase.class));
+        assertNotNull(context.getBean("userDatabase", CachingUaaUserDatabase.class));
         FilterChainProxy filterChain = (FilterChainProxy)context.getBean("org.springframework.security.filterChainProxy");
         MockHttpServletResponse response = new MockHttpServletResponse();
         MockHttpServletRequest request = new MockHttpServletRequest("GET", "/Users");